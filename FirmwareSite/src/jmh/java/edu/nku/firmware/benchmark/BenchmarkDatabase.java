@@ -0,0 +1,38 @@
+package edu.nku.firmware.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import edu.nku.firmware.utility.DataUtility;
+
+final class BenchmarkDatabase {
+	/*
+	 * Points DataUtility at a fresh SQLite file before its first use. JMH
+	 * forks a JVM per benchmark, so every benchmark starts from an empty
+	 * copy of the bundled database and never touches the working directory.
+	 */
+
+	private static DataUtility data = null;
+
+	private BenchmarkDatabase() {
+	}
+
+	static synchronized DataUtility open() throws IOException {
+		if (data == null) {
+			Path dbDir = Files.createTempDirectory("firmware-jmh");
+			System.setProperty("firmware.db.path", dbDir.resolve("FirmwareSite.db").toString());
+			System.setProperty("firmware.log.path", dbDir.resolve("FirmwareSite.log").toString());
+			data = DataUtility.getInstance();
+		}
+		return data;
+	}
+
+	static String payload(int size) {
+		StringBuilder sb = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			sb.append((char) ('a' + (i % 26)));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,47 @@
+package edu.nku.firmware.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.nku.firmware.utility.CryptoUtility;
+import edu.nku.firmware.utility.ServiceLogger;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CryptoBenchmark {
+	/*
+	 * Measures CryptoUtility.encryptMessage for both wire protocols across
+	 * payload sizes. Protocol 1 runs every block through RSA, so its time per
+	 * op should grow linearly with the payload, up to the 10 MB images the
+	 * largest devices take.
+	 */
+
+	@Param({ "1024", "16384", "131072", "1048576", "10485760" })
+	public int payloadSize;
+
+	@Param({ "1", "2" })
+	public int protocol;
+
+	private CryptoUtility crypto;
+	private String message;
+
+	@Setup
+	public void setUp() throws Exception {
+		crypto = new CryptoUtility(BenchmarkDatabase.open(), ServiceLogger.getInstance());
+		message = BenchmarkDatabase.payload(payloadSize);
+	}
+
+	@Benchmark
+	public String encryptMessage() {
+		return crypto.encryptMessage(message, protocol);
+	}
+}
@@ -0,0 +1,77 @@
+package edu.nku.firmware.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.nku.firmware.utility.DataUtility;
+import edu.nku.firmware.utility.FirmwareCatalog;
+import edu.nku.firmware.utility.InMemoryFirmwareCatalog;
+import edu.nku.firmware.utility.ServiceLogger;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataAccessBenchmark {
+	/*
+	 * Measures getFirmwareVersion on each catalog engine against a temporary
+	 * database holding modelCount models. With cached=false the SQLite
+	 * version cache is emptied before every lookup, outside the measured
+	 * call, so each call reaches SQLite. The memory engine never consults
+	 * that cache.
+	 */
+
+	private static final int VENDOR_ID = 8080;
+
+	@Param({ "10", "10000" })
+	public int modelCount;
+
+	@Param({ "true", "false" })
+	public boolean cached;
+
+	@Param({ "sqlite", "memory" })
+	public String catalog;
+
+	private DataUtility data;
+	private FirmwareCatalog engine;
+	private String vendorId;
+	private String[] modelIds;
+
+	@Setup
+	public void setUp() throws Exception {
+		data = BenchmarkDatabase.open();
+		vendorId = String.valueOf(VENDOR_ID);
+		modelIds = new String[modelCount];
+		Map<Integer, Integer> versions = new HashMap<>();
+		for (int modelId = 0; modelId < modelCount; modelId++) {
+			modelIds[modelId] = String.valueOf(modelId);
+			versions.put(modelId, modelId % 100);
+		}
+		data.publishFirmwareVersions(VENDOR_ID, versions);
+		engine = "memory".equals(catalog) ? new InMemoryFirmwareCatalog(data, ServiceLogger.getInstance()) : data;
+	}
+
+	@Setup(Level.Invocation)
+	public void emptyCache() {
+		if (!cached) {
+			data.getVersionCache().invalidateAll();
+		}
+	}
+
+	@Benchmark
+	public int getFirmwareVersion() {
+		String modelId = modelIds[ThreadLocalRandom.current().nextInt(modelIds.length)];
+		return engine.getFirmwareVersion(vendorId, modelId);
+	}
+}
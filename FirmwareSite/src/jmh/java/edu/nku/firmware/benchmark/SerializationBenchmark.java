@@ -0,0 +1,48 @@
+package edu.nku.firmware.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.gson.Gson;
+
+import edu.nku.firmware.resource.Result;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+	/*
+	 * Measures the Gson serialization of the update Result that is encrypted
+	 * and sent to devices, with a Base64 firmware image of the given size.
+	 */
+
+	@Param({ "1024", "16384", "131072", "1048576" })
+	public int payloadSize;
+
+	private Gson gson;
+	private Result result;
+
+	@Setup
+	public void setUp() {
+		gson = new Gson();
+		result = new Result("update");
+		result.setModel("3");
+		result.setVersion(42);
+		result.setFirmware("8080");
+		result.setFile(Base64.encodeBase64String(BenchmarkDatabase.payload(payloadSize).getBytes()));
+	}
+
+	@Benchmark
+	public String toJson() {
+		return gson.toJson(result, Result.class);
+	}
+}
@@ -0,0 +1,52 @@
+package edu.nku.firmware.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import edu.nku.firmware.utility.CryptoUtility;
+import edu.nku.firmware.utility.ServiceLogger;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SigningBenchmark {
+	/*
+	 * Measures CryptoUtility.signFile over a firmware file of the given size,
+	 * which is hashing the whole file plus one private key operation.
+	 */
+
+	@Param({ "1024", "1048576", "16777216" })
+	public int fileSize;
+
+	private CryptoUtility crypto;
+	private Path file;
+
+	@Setup
+	public void setUp() throws Exception {
+		crypto = new CryptoUtility(BenchmarkDatabase.open(), ServiceLogger.getInstance());
+		file = Files.createTempFile("firmware-jmh", ".bin");
+		Files.write(file, BenchmarkDatabase.payload(fileSize).getBytes(StandardCharsets.UTF_8));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public byte[] signFile() throws Exception {
+		return crypto.signFile(file);
+	}
+}
@@ -0,0 +1,241 @@
+package edu.nku.firmware.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import edu.nku.firmware.server.FirmwareSiteServer;
+
+public class FleetLoadTest {
+	/*
+	 * Simulates a fleet of devices polling the site. Unless loadtest.target
+	 * names a running server, a FirmwareSiteServer is started in this JVM on
+	 * a free port against a scratch database, so the run needs no network.
+	 *
+	 * Each device polls its model's version with If-None-Match at a jittered
+	 * interval. A fraction of the fleet also downloads the package whenever
+	 * the version changes. Halfway through, a burst of /firmware/newVersion
+	 * calls republishes every model so those devices all download at once.
+	 *
+	 * Poll latency is measured from the time the poll was due rather than
+	 * when a worker got to it, so a backed-up client shows up as latency
+	 * instead of quietly sending fewer requests.
+	 */
+
+	private static final String POLL = "poll";
+	private static final String PACKAGE = "package";
+	private static final String NEW_VERSION = "newVersion";
+
+	private final String baseUrl;
+	private final int devices = Integer.getInteger("loadtest.devices", 500);
+	private final int models = Integer.getInteger("loadtest.models", 10);
+	private final int threads = Integer.getInteger("loadtest.threads", 64);
+	private final long durationMillis = TimeUnit.SECONDS.toMillis(Long.getLong("loadtest.durationSeconds", 60));
+	private final long pollIntervalMillis = Long.getLong("loadtest.pollIntervalMillis", 5000);
+	private final double jitter = Double.parseDouble(System.getProperty("loadtest.jitter", "0.2"));
+	private final double downloadFraction = Double.parseDouble(System.getProperty("loadtest.downloadFraction", "0.1"));
+	private final long burstAtMillis = TimeUnit.SECONDS
+			.toMillis(Long.getLong("loadtest.burstAtSeconds", TimeUnit.MILLISECONDS.toSeconds(durationMillis) / 2));
+	private final int burstSize = Integer.getInteger("loadtest.burstSize", 20);
+
+	private final Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+	private ScheduledThreadPoolExecutor scheduler;
+	private volatile long deadline;
+
+	public FleetLoadTest(String baseUrl) {
+		this.baseUrl = baseUrl;
+		recorders.put(POLL, new LatencyRecorder());
+		recorders.put(PACKAGE, new LatencyRecorder());
+		recorders.put(NEW_VERSION, new LatencyRecorder());
+	}
+
+	public static void main(String[] args) throws Exception {
+		String target = System.getProperty("loadtest.target");
+		String baseUrl = (target != null) ? target : startServer();
+		// let each worker keep its own connection alive between requests
+		System.setProperty("http.maxConnections", Integer.getInteger("loadtest.threads", 64).toString());
+
+		FleetLoadTest loadTest = new FleetLoadTest(baseUrl);
+		loadTest.run();
+		loadTest.report();
+		System.exit(0);
+	}
+
+	private static String startServer() throws Exception {
+		Path workDir = Files.createTempDirectory("firmware-loadtest");
+		if (System.getProperty("firmware.db.path") == null) {
+			System.setProperty("firmware.db.path", workDir.resolve("FirmwareSite.db").toString());
+		}
+		if (System.getProperty("firmware.log.path") == null) {
+			System.setProperty("firmware.log.path", workDir.resolve("FirmwareSite.log").toString());
+		}
+
+		// port 0 lets the kernel pick a free ephemeral port
+		FirmwareSiteServer server = new FirmwareSiteServer(0);
+		server.start();
+		return "http://localhost:" + server.getLocalPort();
+	}
+
+	public void run() throws InterruptedException {
+		System.out.println(String.format(
+				"Fleet: %d devices, %d models, poll every %d ms +/-%.0f%%, %.0f%% download, %d threads, %d s against %s",
+				devices, models, pollIntervalMillis, jitter * 100, downloadFraction * 100, threads,
+				TimeUnit.MILLISECONDS.toSeconds(durationMillis), baseUrl));
+
+		scheduler = new ScheduledThreadPoolExecutor(threads);
+		scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		long start = System.nanoTime();
+		deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < devices; i++) {
+			Device device = new Device("device-" + i, random.nextInt(models), random.nextDouble() < downloadFraction);
+			// spread the first polls over one interval instead of starting in lockstep
+			device.schedule(start, random.nextLong(Math.max(1, pollIntervalMillis)));
+		}
+		if (burstSize > 0 && burstAtMillis < durationMillis) {
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < burstSize; i++) {
+						scheduler.execute(new Runnable() {
+							@Override
+							public void run() {
+								request(NEW_VERSION, "/firmware/newVersion", null, null, System.nanoTime());
+							}
+						});
+					}
+				}
+			}, burstAtMillis, TimeUnit.MILLISECONDS);
+		}
+
+		Thread.sleep(durationMillis);
+		scheduler.shutdown();
+		scheduler.awaitTermination(30, TimeUnit.SECONDS);
+	}
+
+	public void report() {
+		double seconds = durationMillis / 1000.0;
+		long requests = 0;
+		long errors = 0;
+		System.out.println(String.format("%-11s %9s %7s %7s %9s %9s %9s %9s %9s", "endpoint", "requests", "errors",
+				"err%", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+		for (Map.Entry<String, LatencyRecorder> entry : recorders.entrySet()) {
+			LatencyRecorder recorder = entry.getValue();
+			long count = recorder.getCount();
+			requests += count;
+			errors += recorder.getErrorCount();
+			System.out.println(String.format("%-11s %9d %7d %7.2f %9.1f %9.2f %9.2f %9.2f %9.2f", entry.getKey(), count,
+					recorder.getErrorCount(), percent(recorder.getErrorCount(), count), count / seconds,
+					recorder.percentileMicros(0.50) / 1000.0, recorder.percentileMicros(0.99) / 1000.0,
+					recorder.percentileMicros(0.999) / 1000.0, recorder.getMaxMicros() / 1000.0));
+		}
+		System.out.println(String.format("%-11s %9d %7d %7.2f %9.1f", "total", requests, errors,
+				percent(errors, requests), requests / seconds));
+	}
+
+	private static double percent(long part, long whole) {
+		return (whole == 0) ? 0 : 100.0 * part / whole;
+	}
+
+	/*
+	 * Sends one GET, as deviceId when that is not null, and records it
+	 * against the given endpoint. Returns the response ETag, or null when
+	 * there was none or the request failed.
+	 */
+	private String request(String endpoint, String path, String etag, String deviceId, long dueNanos) {
+		boolean error = true;
+		String responseTag = null;
+		HttpURLConnection conn = null;
+		try {
+			conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+			conn.setConnectTimeout(10000);
+			conn.setReadTimeout(30000);
+			if (etag != null) {
+				conn.setRequestProperty("If-None-Match", etag);
+			}
+			if (deviceId != null) {
+				conn.setRequestProperty("X-Device-Id", deviceId);
+			}
+			int status = conn.getResponseCode();
+			error = status >= 400;
+			drain(error ? conn.getErrorStream() : conn.getInputStream());
+			responseTag = (status == 304) ? etag : conn.getHeaderField("ETag");
+		} catch (IOException e) {
+			if (conn != null) {
+				try {
+					drain(conn.getErrorStream());
+				} catch (IOException ignored) {
+					// the connection is dropped either way
+				}
+			}
+		} finally {
+			recorders.get(endpoint).record(System.nanoTime() - dueNanos, error);
+		}
+		return error ? null : responseTag;
+	}
+
+	private static void drain(InputStream input) throws IOException {
+		// reading to the end lets HttpURLConnection reuse the connection
+		if (input == null) {
+			return;
+		}
+		byte[] buffer = new byte[8192];
+		try {
+			while (input.read(buffer) >= 0) {
+				// discard
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	private class Device implements Runnable {
+		private final String id;
+		private final String model;
+		private final boolean downloads;
+		private String etag;
+		private long dueNanos;
+
+		Device(String id, int model, boolean downloads) {
+			this.id = id;
+			this.model = String.valueOf(model);
+			this.downloads = downloads;
+		}
+
+		void schedule(long fromNanos, long delayMillis) {
+			dueNanos = fromNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+			if (dueNanos >= deadline) {
+				return;
+			}
+			try {
+				scheduler.schedule(this, dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				// the run is over
+			}
+		}
+
+		@Override
+		public void run() {
+			String previous = etag;
+			String current = request(POLL, "/firmware/update/" + model, previous, id, dueNanos);
+			if (current != null) {
+				etag = current;
+				if (downloads && !current.equals(previous)) {
+					request(PACKAGE, "/firmware/update/package/" + model, null, id, System.nanoTime());
+				}
+			}
+			double spread = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+			schedule(dueNanos, (long) (pollIntervalMillis * spread));
+		}
+	}
+}
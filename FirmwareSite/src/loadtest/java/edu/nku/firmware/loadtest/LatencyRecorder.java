@@ -0,0 +1,88 @@
+package edu.nku.firmware.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class LatencyRecorder {
+	/*
+	 * Records latencies in log-linear microsecond buckets: each power of two
+	 * is split into sixteen slots, so percentiles are exact to within about
+	 * 6% at any scale and recording never allocates.
+	 */
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAGNITUDES = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray(MAGNITUDES * SUB_BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	void record(long nanos, boolean error) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(index(micros));
+		total.incrementAndGet();
+		if (error) {
+			errors.incrementAndGet();
+		}
+		long max;
+		while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+			// retry until the larger value sticks
+		}
+	}
+
+	long getCount() {
+		return total.get();
+	}
+
+	long getErrorCount() {
+		return errors.get();
+	}
+
+	long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	/*
+	 * Returns the upper bound, in microseconds, of the bucket holding the
+	 * given quantile.
+	 */
+	long percentileMicros(double quantile) {
+		long count = total.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), maxMicros.get());
+			}
+		}
+		return maxMicros.get();
+	}
+
+	private static int index(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+		int sub = (int) (micros >>> magnitude) - SUB_BUCKETS / 2;
+		return Math.min(bucketIndex(magnitude, sub), MAGNITUDES * SUB_BUCKETS - 1);
+	}
+
+	private static int bucketIndex(int magnitude, int sub) {
+		return SUB_BUCKETS + (magnitude - 1) * (SUB_BUCKETS / 2) + sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = (index - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+		int sub = (index - SUB_BUCKETS) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+		return ((long) (sub + 1) << magnitude) - 1;
+	}
+}
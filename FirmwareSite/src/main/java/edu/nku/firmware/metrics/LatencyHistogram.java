@@ -0,0 +1,57 @@
+package edu.nku.firmware.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+	/*
+	 * A fixed-bucket latency histogram. Recording is a short scan over the
+	 * bucket bounds and two LongAdder increments, so it is cheap enough for
+	 * every request and every query.
+	 */
+
+	static final double[] BUCKET_SECONDS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+			0.25, 0.5, 1, 2.5, 5, 10 };
+	private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+	static {
+		for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+			BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+
+	// the last slot counts observations above every bound
+	private final LongAdder[] buckets = new LongAdder[BUCKET_NANOS.length + 1];
+	private final LongAdder sumNanos = new LongAdder();
+
+	LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void observeSince(long startNanos) {
+		observeNanos(System.nanoTime() - startNanos);
+	}
+
+	public void observeNanos(long nanos) {
+		int i = 0;
+		while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		sumNanos.add(nanos);
+	}
+
+	long[] bucketCounts() {
+		long[] counts = new long[buckets.length];
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	double sumSeconds() {
+		return sumNanos.sum() / 1e9;
+	}
+}
@@ -0,0 +1,45 @@
+package edu.nku.firmware.metrics;
+
+import java.io.IOException;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+	/*
+	 * Times every JAX-RS resource method, labelled Class.method. The time
+	 * runs until the response is handed to the container; streamed bodies
+	 * are written after that.
+	 */
+
+	private static final String START_PROPERTY = "edu.nku.firmware.metrics.start";
+
+	@Context
+	private ResourceInfo resourceInfo;
+
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		requestContext.setProperty(START_PROPERTY, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+			throws IOException {
+		Object start = requestContext.getProperty(START_PROPERTY);
+		if (start == null || resourceInfo == null || resourceInfo.getResourceMethod() == null) {
+			return;
+		}
+		String method = resourceInfo.getResourceClass().getSimpleName() + "."
+				+ resourceInfo.getResourceMethod().getName();
+		metrics.histogram("firmware_request_duration_seconds", "Time spent in each resource method.", "method",
+				method).observeSince((Long) start);
+		metrics.counter("firmware_responses_total", "Responses by HTTP status.", "status",
+				String.valueOf(responseContext.getStatus())).increment();
+	}
+}
@@ -0,0 +1,156 @@
+package edu.nku.firmware.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MetricsRegistry {
+	/*
+	 * A singleton holding the service's histograms, counters and gauges, and
+	 * rendering them in the Prometheus text exposition format. Metrics are
+	 * looked up once and kept in fields by the code that records them.
+	 */
+
+	public interface Gauge {
+		double value();
+	}
+
+	private static MetricsRegistry instance = null;
+
+	private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+	private MetricsRegistry() {
+	}
+
+	public static synchronized MetricsRegistry getInstance() {
+		if (instance == null) {
+			instance = new MetricsRegistry();
+		}
+		return instance;
+	}
+
+	public LatencyHistogram histogram(String name, String help, String labelName, String labelValue) {
+		Family family = family(name, help, "histogram");
+		String labels = labels(labelName, labelValue);
+		Object metric = family.metrics.get(labels);
+		if (metric == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			metric = family.metrics.putIfAbsent(labels, created);
+			if (metric == null) {
+				metric = created;
+			}
+		}
+		return (LatencyHistogram) metric;
+	}
+
+	public LongAdder counter(String name, String help, String labelName, String labelValue) {
+		Family family = family(name, help, "counter");
+		String labels = labels(labelName, labelValue);
+		Object metric = family.metrics.get(labels);
+		if (metric == null) {
+			LongAdder created = new LongAdder();
+			metric = family.metrics.putIfAbsent(labels, created);
+			if (metric == null) {
+				metric = created;
+			}
+		}
+		return (LongAdder) metric;
+	}
+
+	/*
+	 * Registers a value read at scrape time. type is "gauge", or "counter" for
+	 * values that only grow, such as the hit counts kept by a cache.
+	 */
+	public void gauge(String name, String help, String type, String labelName, String labelValue, Gauge gauge) {
+		family(name, help, type).metrics.put(labels(labelName, labelValue), gauge);
+	}
+
+	/*
+	 * Unregisters a gauge, unless another has replaced it since.
+	 */
+	public void removeGauge(String name, String labelName, String labelValue, Gauge gauge) {
+		Family family = families.get(name);
+		if (family != null) {
+			family.metrics.remove(labels(labelName, labelValue), gauge);
+		}
+	}
+
+	public String scrape() {
+		StringBuilder sb = new StringBuilder(4096);
+		for (Map.Entry<String, Family> entry : families.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> metric : family.metrics.entrySet()) {
+				write(sb, name, metric.getKey(), metric.getValue());
+			}
+		}
+		return sb.toString();
+	}
+
+	private void write(StringBuilder sb, String name, String labels, Object metric) {
+		if (metric instanceof LatencyHistogram) {
+			LatencyHistogram histogram = (LatencyHistogram) metric;
+			long[] counts = histogram.bucketCounts();
+			long cumulative = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumulative += counts[i];
+				String le = (i < LatencyHistogram.BUCKET_SECONDS.length)
+						? Double.toString(LatencyHistogram.BUCKET_SECONDS[i]) : "+Inf";
+				sb.append(name).append("_bucket").append(withLabel(labels, "le", le)).append(' ').append(cumulative)
+						.append('\n');
+			}
+			sb.append(name).append("_sum").append(labels).append(' ').append(histogram.sumSeconds()).append('\n');
+			sb.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+		} else if (metric instanceof LongAdder) {
+			sb.append(name).append(labels).append(' ').append(((LongAdder) metric).sum()).append('\n');
+		} else {
+			sb.append(name).append(labels).append(' ').append(((Gauge) metric).value()).append('\n');
+		}
+	}
+
+	private Family family(String name, String help, String type) {
+		Family family = families.get(name);
+		if (family == null) {
+			Family created = new Family(help, type);
+			family = families.putIfAbsent(name, created);
+			if (family == null) {
+				family = created;
+			}
+		}
+		return family;
+	}
+
+	private static String labels(String labelName, String labelValue) {
+		if (labelName == null) {
+			return "";
+		}
+		return "{" + labelName + "=\"" + escape(labelValue) + "\"}";
+	}
+
+	private static String withLabel(String labels, String labelName, String labelValue) {
+		String label = labelName + "=\"" + labelValue + "\"";
+		if (labels.isEmpty()) {
+			return "{" + label + "}";
+		}
+		return labels.substring(0, labels.length() - 1) + "," + label + "}";
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static class Family {
+		final String help;
+		final String type;
+		final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+		Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+}
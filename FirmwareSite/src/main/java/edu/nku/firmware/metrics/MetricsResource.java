@@ -0,0 +1,15 @@
+package edu.nku.firmware.metrics;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+@Path("/metrics")
+public class MetricsResource {
+
+	@GET
+	@Produces("text/plain; version=0.0.4")
+	public String getMetrics() {
+		return MetricsRegistry.getInstance().scrape();
+	}
+}
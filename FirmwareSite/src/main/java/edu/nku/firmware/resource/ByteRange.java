@@ -0,0 +1,92 @@
+package edu.nku.firmware.resource;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+class ByteRange {
+	/*
+	 * A single satisfiable byte range from an HTTP Range header, with an
+	 * inclusive end offset. Multi-range requests are not supported and are
+	 * answered with the full body, as RFC 7233 allows.
+	 */
+
+	static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+	final long start;
+	final long end;
+
+	private ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	long length() {
+		return end - start + 1;
+	}
+
+	String contentRange(long size) {
+		return "bytes " + start + "-" + end + "/" + size;
+	}
+
+	/*
+	 * Returns null when the header is absent or malformed (serve the whole
+	 * body), or UNSATISFIABLE when it lies outside the content.
+	 */
+	static ByteRange parse(String header, long size) {
+		if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+			return null;
+		}
+		String spec = header.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				// suffix range: the final N bytes
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0 || size == 0) {
+					return UNSATISFIABLE;
+				}
+				return new ByteRange(Math.max(0, size - suffix), size - 1);
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+			if (start >= size || end < start) {
+				return UNSATISFIABLE;
+			}
+			return new ByteRange(start, end);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Whether a Range may be honoured under an If-Range header. The
+	 * validator must be the image's current strong entity tag, given
+	 * unquoted, or exactly its Last-Modified date; anything else means the
+	 * device holds part of a different image and must get the whole body.
+	 */
+	static boolean ifRangeMatches(String header, String etag, long lastModified) {
+		if (header == null) {
+			return true;
+		}
+		String validator = header.trim();
+		if (validator.startsWith("W/")) {
+			// weak tags never match
+			return false;
+		}
+		if (validator.startsWith("\"")) {
+			return validator.equals("\"" + etag + "\"");
+		}
+		try {
+			long date = ZonedDateTime.parse(validator, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+			return date == lastModified / 1000;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package edu.nku.firmware.resource;
+
+public class DeviceVersion {
+	/*
+	 * One entry of a bulk version check: a device model and, optionally,
+	 * the firmware version it currently runs.
+	 */
+
+	public String model; // Device Model
+	public Integer version; // Installed Firmware Version, if known
+
+	public DeviceVersion() {
+
+	}
+
+	public DeviceVersion(String model, Integer version) {
+		this.model = model;
+		this.version = version;
+	}
+
+	public String getModel() {
+		return model;
+	}
+
+	public void setModel(String model) {
+		this.model = model;
+	}
+
+	public Integer getVersion() {
+		return version;
+	}
+
+	public void setVersion(Integer version) {
+		this.version = version;
+	}
+}
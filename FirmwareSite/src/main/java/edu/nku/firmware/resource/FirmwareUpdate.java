@@ -1,109 +1,380 @@
 package edu.nku.firmware.resource;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Application;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.StringUtils;
-
-import com.google.gson.Gson;
 
+import edu.nku.firmware.metrics.MetricsRegistry;
 import edu.nku.firmware.utility.CryptoUtility;
-import edu.nku.firmware.utility.DataUtility;
+import edu.nku.firmware.utility.DeltaPackageBuilder;
+import edu.nku.firmware.utility.DownloadTelemetry;
+import edu.nku.firmware.utility.FirmwareCatalog;
+import edu.nku.firmware.utility.FirmwarePackage;
+import edu.nku.firmware.utility.PackageBuilder;
+import edu.nku.firmware.utility.PackageSigner;
 
 @Path("/firmware")
 public class FirmwareUpdate {
 
+	private static final String POLL_MAX_AGE_PROPERTY = "firmware.poll.maxAge";
+	private static final int DEFAULT_POLL_MAX_AGE = 60;
+	private static final CacheControl POLL_CACHE_CONTROL = pollCacheControl();
+	private static final LongAdder packageBytesServed = bytesServed("package");
+	private static final LongAdder binaryBytesServed = bytesServed("binary");
+
 	@Context
 	private Application appContext;
 
+	private static CacheControl pollCacheControl() {
+		// version answers are identical for every device, so shared proxies may hold them too
+		CacheControl cacheControl = new CacheControl();
+		cacheControl.setMaxAge(Integer.getInteger(POLL_MAX_AGE_PROPERTY, DEFAULT_POLL_MAX_AGE));
+		cacheControl.getCacheExtension().put("public", null);
+		return cacheControl;
+	}
+
+	private static LongAdder bytesServed(String endpoint) {
+		return MetricsRegistry.getInstance().counter("firmware_bytes_served_total",
+				"Firmware response bytes handed to the container.", "endpoint", endpoint);
+	}
+
 	@GET
 	@Path("/update/{model}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Result getLatestVersion(@PathParam("model") String pModel) {
+	public Response getLatestVersion(@PathParam("model") String pModel, @Context Request pRequest) {
+		String sFirmware = appContext.getProperties().get("firmwareID").toString();
+		FirmwareCatalog data = getCatalog();
+
+		// a device that already has the current version is answered from the version cache alone
+		Integer cachedVersion = data.peekFirmwareVersion(sFirmware, pModel);
+		if (cachedVersion != null) {
+			EntityTag etag = versionTag(sFirmware, pModel, cachedVersion);
+			ResponseBuilder notModified = pRequest.evaluatePreconditions(etag);
+			if (notModified != null) {
+				return notModified.tag(etag).cacheControl(POLL_CACHE_CONTROL).build();
+			}
+		}
+
 		Result oResult = new Result("version");
-		oResult.setFirmware(appContext.getProperties().get("firmwareID").toString());
+		oResult.setFirmware(sFirmware);
 		oResult.setModel(pModel);
+		oResult.setVersion(data.getFirmwareVersion(sFirmware, pModel));
+		return Response.ok(oResult)
+				.tag(versionTag(sFirmware, pModel, oResult.getVersion()))
+				.cacheControl(POLL_CACHE_CONTROL)
+				.build();
+	}
+
+	private static EntityTag versionTag(String sFirmware, String pModel, int version) {
+		return new EntityTag(sFirmware + "-" + pModel + "-" + version);
+	}
+
+	@GET
+	@Path("/update/{model}/watch")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void watchVersion(@PathParam("model") String pModel,
+			@QueryParam("version") @DefaultValue("-1") int pVersion, @Suspended AsyncResponse pResponse) {
+		/*
+		 * Long-poll: answers as soon as the model's firmware differs from
+		 * pVersion, the version the device runs, or with 204 No Content once
+		 * the wait times out.
+		 */
+		String sFirmware = appContext.getProperties().get("firmwareID").toString();
+		int vendorId = Integer.parseInt(sFirmware);
+		int modelId;
+		try {
+			modelId = Integer.parseInt(pModel);
+		} catch (NumberFormatException e) {
+			pResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+			return;
+		}
+
+		FirmwareCatalog data = getCatalog();
+		// every watched model costs an entry in the hub, so only real ones may be watched
+		if (!data.hasModel(sFirmware, pModel)) {
+			pResponse.resume(Response.status(Response.Status.NOT_FOUND).build());
+			return;
+		}
+		int firmwareVersion = data.getFirmwareVersion(sFirmware, pModel);
+		if (firmwareVersion != pVersion) {
+			pResponse.resume(versionResult(sFirmware, pModel, firmwareVersion));
+			return;
+		}
+
+		UpdateNotificationHub hub = getNotificationHub();
+		hub.subscribe(vendorId, modelId, pResponse);
+		// a publish that landed between the lookup and subscribing would otherwise be missed
+		Integer latest = data.peekFirmwareVersion(sFirmware, pModel);
+		if (latest != null && latest != pVersion) {
+			hub.unsubscribe(vendorId, modelId, pResponse);
+			pResponse.resume(versionResult(sFirmware, pModel, latest));
+		}
+	}
 
-		DataUtility data = DataUtility.getInstance();
-		oResult.setVersion(data.getFirmwareVersion(appContext.getProperties().get("firmwareID").toString(), pModel));
+	private static Result versionResult(String sFirmware, String pModel, int version) {
+		Result oResult = new Result("version");
+		oResult.setFirmware(sFirmware);
+		oResult.setModel(pModel);
+		oResult.setVersion(version);
 		return oResult;
 	}
 
+	@POST
+	@Path("/update/bulk")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public List<Result> getLatestVersions(List<DeviceVersion> pDevices) {
+		/*
+		 * For gateways: answers many models in one round trip and returns
+		 * only the models with firmware newer than the installed version.
+		 */
+		String sFirmware = appContext.getProperties().get("firmwareID").toString();
+		List<Result> oResults = new ArrayList<>();
+		if (pDevices == null || pDevices.isEmpty()) {
+			return oResults;
+		}
+
+		List<Integer> modelIds = new ArrayList<>(pDevices.size());
+		for (DeviceVersion device : pDevices) {
+			Integer modelId = parseModel(device);
+			if (modelId != null) {
+				modelIds.add(modelId);
+			}
+		}
+
+		FirmwareCatalog data = getCatalog();
+		Map<Integer, Integer> versions = data.getFirmwareVersions(Integer.parseInt(sFirmware), modelIds);
+		for (DeviceVersion device : pDevices) {
+			Integer modelId = parseModel(device);
+			if (modelId == null) {
+				continue;
+			}
+			int latest = versions.get(modelId);
+			if (device.getVersion() == null || latest > device.getVersion()) {
+				Result oResult = new Result("version");
+				oResult.setFirmware(sFirmware);
+				oResult.setModel(device.getModel());
+				oResult.setVersion(latest);
+				oResults.add(oResult);
+			}
+		}
+		return oResults;
+	}
+
+	private static Integer parseModel(DeviceVersion device) {
+		if (device == null || device.getModel() == null) {
+			return null;
+		}
+		try {
+			return Integer.valueOf(device.getModel().trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
 	@GET
 	@Path("/update/package/{model}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public String getUpdate(@PathParam("model") String pModel) throws IOException, InvalidKeyException,
-			NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
-		Result oResult = new Result("update");
-		oResult.setModel(pModel);
-		
-		DataUtility data = DataUtility.getInstance();
-		int firmwareVersion = data.getFirmwareVersion(appContext.getProperties().get("firmwareID").toString(), pModel);
-		oResult.setVersion(firmwareVersion);
-		
-		oResult.setFirmware(appContext.getProperties().get("firmwareID").toString());
-		List<String> lines = Arrays.asList("Firwmare Update", "Firmware ID: " + oResult.getFirmware(),
-				"Model ID: " + pModel, "Version: " + oResult.getVersion());
-		Files.write(Paths.get("Update_" + oResult.getVersion() + ".txt"), lines);
-		
-		ByteArrayOutputStream ba = loadFileAsStream("Update_" + oResult.getVersion() + ".txt");
-		oResult.setFile(StringUtils.newStringUtf8(Base64.encodeBase64(ba.toByteArray())));
+	public Response getUpdate(@PathParam("model") String pModel,
+			@HeaderParam("X-Firmware-Protocol") @DefaultValue("1") int pProtocol,
+			@HeaderParam("X-Device-Id") String pDeviceId, @QueryParam("from") Integer pFrom) throws IOException,
+			InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+		/*
+		 * A device that names the version it runs with ?from= gets a signed
+		 * delta against it when one has been built, otherwise the full image.
+		 */
+		String sFirmware = appContext.getProperties().get("firmwareID").toString();
+		FirmwareCatalog data = getCatalog();
+		int firmwareVersion = data.getFirmwareVersion(sFirmware, pModel);
+
+		FirmwarePackage oPackage = null;
+		if (pFrom != null && pFrom != firmwareVersion) {
+			oPackage = findDelta(sFirmware, pModel, pFrom, firmwareVersion);
+		}
+		boolean delta = (oPackage != null);
+		if (!delta) {
+			oPackage = getPackageBuilder().getPackage(sFirmware, pModel, firmwareVersion);
+		}
+		UpdateResponseCache responseCache = getResponseCache();
+		String sResponse = null;
+		if (responseCache.isCacheable(oPackage)) {
+			sResponse = delta ? responseCache.getDeltaResponse(oPackage, pProtocol)
+					: responseCache.getResponse(sFirmware, pModel, firmwareVersion, pProtocol);
+		}
+		Object oEntity;
+		if (sResponse != null) {
+			// the response is hex and base64 inside JSON, so one byte per char
+			packageBytesServed.add(sResponse.length());
+			oEntity = sResponse;
+		} else {
+			/*
+			 * Large images are encrypted on the way out rather than built in
+			 * memory. So is any response the cache could not build; it has
+			 * already logged why.
+			 */
+			oEntity = new UpdateResponseStream(getCrypto(), oPackage, pProtocol, packageBytesServed);
+		}
+		recordDownload(pDeviceId, sFirmware, pModel, firmwareVersion);
 
 		Random rand = new Random();
 		if(rand.nextInt(100) %2 == 0)
-			data.tickUpFirmwareVersion(oResult.getFirmware(), pModel, firmwareVersion++);
+			data.tickUpFirmwareVersion(sFirmware, pModel, firmwareVersion++);
 
-		Gson gson = new Gson();
-		String sResponse = gson.toJson(oResult, Result.class);
-		
-		CryptoUtility crypto = new CryptoUtility();
-		sResponse = crypto.encryptMessage(sResponse);
+		return Response.ok(oEntity).build();
+	}
 
-		return sResponse;
+	private FirmwarePackage findDelta(String sFirmware, String pModel, int baseVersion, int firmwareVersion) {
+		int modelId;
+		try {
+			modelId = Integer.parseInt(pModel);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return getDeltaBuilder().getDelta(Integer.parseInt(sFirmware), modelId, baseVersion, firmwareVersion);
 	}
 	
 	@GET
-	@Path("/newVersion")
-	public void UpdateAllFirmware() {
-		DataUtility data = DataUtility.getInstance();
-		data.updateFirmwareVersions(Integer.parseInt(appContext.getProperties().get("firmwareID").toString()));
+	@Path("/update/package/{model}/binary")
+	@Produces(MediaType.APPLICATION_OCTET_STREAM)
+	public Response getUpdateBinary(@PathParam("model") String pModel, @HeaderParam("Range") String pRange,
+			@HeaderParam("If-Range") String pIfRange, @HeaderParam("X-Device-Id") String pDeviceId,
+			@Context Request pRequest) throws IOException {
+		String sFirmware = appContext.getProperties().get("firmwareID").toString();
+		FirmwareCatalog data = getCatalog();
+		int firmwareVersion = data.getFirmwareVersion(sFirmware, pModel);
+
+		final FirmwarePackage oPackage = getPackageBuilder().getPackage(sFirmware, pModel, firmwareVersion);
+		// images are signed when published; serving never signs
+		byte[] signature = getPackageSigner().getSignature(oPackage);
+		if (signature == null) {
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", 1).build();
+		}
+
+		EntityTag etag = imageTag(oPackage);
+		Date lastModified = new Date(oPackage.getLastModified());
+		ResponseBuilder notModified = pRequest.evaluatePreconditions(lastModified, etag);
+		if (notModified != null) {
+			return notModified.tag(etag).lastModified(lastModified).build();
+		}
+
+		long size = oPackage.getSize();
+		// a range of some other image would splice two images together; send this one whole
+		ByteRange range = ByteRange.ifRangeMatches(pIfRange, etag.getValue(), oPackage.getLastModified())
+				? ByteRange.parse(pRange, size) : null;
+		if (range == ByteRange.UNSATISFIABLE) {
+			return Response.status(416).header("Content-Range", "bytes */" + size).build();
+		}
+		final long start = (range == null) ? 0 : range.start;
+		final long length = (range == null) ? size : range.length();
+		if (start == 0) {
+			// resumed ranges belong to a download that was already counted
+			recordDownload(pDeviceId, sFirmware, pModel, firmwareVersion);
+		}
+
+		StreamingOutput body = new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException {
+				writePackage(oPackage, start, length, output);
+				binaryBytesServed.add(length);
+			}
+		};
+		ResponseBuilder builder = (range == null) ? Response.ok(body)
+				: Response.status(206).entity(body).header("Content-Range", range.contentRange(size));
+		return builder.header("Accept-Ranges", "bytes")
+				.header("Content-Length", length)
+				.tag(etag)
+				.lastModified(lastModified)
+				.header("X-Firmware-Version", firmwareVersion)
+				.header("X-Firmware-Signature", Base64.encodeBase64String(signature))
+				.header("X-Firmware-Signature-Algorithm", getCrypto().getSignatureAlgorithm())
+				.build();
 	}
 
-	private ByteArrayOutputStream loadFileAsStream(String fileName) throws FileNotFoundException {
-		File file = new File(fileName);
-		FileInputStream fis = new FileInputStream(file);
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	/*
+	 * A strong tag for the exact bytes served: a placeholder and the stored
+	 * image that later replaces it share a version but not a tag.
+	 */
+	private static EntityTag imageTag(FirmwarePackage oPackage) {
+		return new EntityTag(oPackage.getVendorId() + "-" + oPackage.getModelId() + "-" + oPackage.getVersion() + "-"
+				+ Long.toHexString(oPackage.getLastModified()) + "-" + Integer.toHexString(oPackage.getSize()));
+	}
 
-		byte[] buf = new byte[1024];
+	private void writePackage(FirmwarePackage oPackage, long start, long length, OutputStream output)
+			throws IOException {
+		if (oPackage.getFile() == null) {
+			output.write(oPackage.getContent(), (int) start, (int) length);
+			return;
+		}
+		// let the kernel copy straight from the page cache where the platform supports it
+		FileChannel channel = FileChannel.open(oPackage.getFile(), StandardOpenOption.READ);
 		try {
-			for (int readNum; (readNum = fis.read(buf)) != -1;) {
-				bos.write(buf, 0, readNum); // no doubt here is 0
+			WritableByteChannel target = Channels.newChannel(output);
+			long position = start;
+			long remaining = length;
+			while (remaining > 0) {
+				long written = channel.transferTo(position, remaining, target);
+				if (written <= 0) {
+					throw new IOException("Firmware image ended early: " + oPackage.getFile());
+				}
+				position += written;
+				remaining -= written;
 			}
-		} catch (IOException ex) {
-			ex.printStackTrace();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void recordDownload(String pDeviceId, String sFirmware, String pModel, int firmwareVersion) {
+		int modelId;
+		try {
+			modelId = Integer.parseInt(pModel);
+		} catch (NumberFormatException e) {
+			return;
 		}
-		return bos;
+		getTelemetry().recordDownload(pDeviceId, Integer.parseInt(sFirmware), modelId, firmwareVersion);
+	}
+
+	@GET
+	@Path("/newVersion")
+	public void UpdateAllFirmware() {
+		FirmwareCatalog data = getCatalog();
+		data.updateFirmwareVersions(Integer.parseInt(appContext.getProperties().get("firmwareID").toString()));
 	}
 
 	@GET
@@ -111,9 +382,50 @@ public class FirmwareUpdate {
 	@Produces(MediaType.APPLICATION_JSON)
 	public KeyResult getVendorPublicKey() {
 		KeyResult oResult = new KeyResult("publickey");
-		CryptoUtility crypto = new CryptoUtility();
-		oResult.setPublickey(crypto.getPublicKey());
+		oResult.setPublickey(getCrypto().getEncodedPublicKey());
+		return oResult;
+	}
+
+	@GET
+	@Path("/signingkey")
+	@Produces(MediaType.APPLICATION_JSON)
+	public KeyResult getVendorSigningKey() {
+		// verifies X-Firmware-Signature and delta signatures
+		KeyResult oResult = new KeyResult("signingkey");
+		oResult.setPublickey(getCrypto().getSigningPublicKey());
 		return oResult;
 	}
 
+	private FirmwareCatalog getCatalog() {
+		return (FirmwareCatalog) appContext.getProperties().get("FirmwareCatalog");
+	}
+
+	private CryptoUtility getCrypto() {
+		return (CryptoUtility) appContext.getProperties().get("CryptoUtility");
+	}
+
+	private PackageBuilder getPackageBuilder() {
+		return (PackageBuilder) appContext.getProperties().get("PackageBuilder");
+	}
+
+	private UpdateNotificationHub getNotificationHub() {
+		return (UpdateNotificationHub) appContext.getProperties().get("UpdateNotificationHub");
+	}
+
+	private DeltaPackageBuilder getDeltaBuilder() {
+		return (DeltaPackageBuilder) appContext.getProperties().get("DeltaPackageBuilder");
+	}
+
+	private PackageSigner getPackageSigner() {
+		return (PackageSigner) appContext.getProperties().get("PackageSigner");
+	}
+
+	private DownloadTelemetry getTelemetry() {
+		return (DownloadTelemetry) appContext.getProperties().get("DownloadTelemetry");
+	}
+
+	private UpdateResponseCache getResponseCache() {
+		return (UpdateResponseCache) appContext.getProperties().get("UpdateResponseCache");
+	}
+
 }
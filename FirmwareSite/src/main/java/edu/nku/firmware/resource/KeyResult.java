@@ -26,4 +26,7 @@ public class KeyResult {
 	public void setPublickey(PublicKey publickey) {
 		this.publickey = publickey.getEncoded();
 	}
+	public void setPublickey(byte[] publickey) {
+		this.publickey = publickey;
+	}
 }
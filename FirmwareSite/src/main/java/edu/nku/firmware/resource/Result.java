@@ -2,6 +2,8 @@ package edu.nku.firmware.resource;
 
 import javax.xml.bind.annotation.XmlRootElement;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 @XmlRootElement
 public class Result {
 	// I have no problem with changing these field names to match more closely
@@ -12,6 +14,27 @@ public class Result {
 	public int version; // Firmware Version
 	public String file; // Actual File as encoded string
 	public String firmware; // Vendor Id
+	// only delta responses carry these; Gson drops nulls already, Jackson needs telling
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public Integer baseVersion; // Version a delta file applies to, null for a full image
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public String signature; // Base64 signature over a delta file
+
+	public Integer getBaseVersion() {
+		return baseVersion;
+	}
+
+	public void setBaseVersion(Integer baseVersion) {
+		this.baseVersion = baseVersion;
+	}
+
+	public String getSignature() {
+		return signature;
+	}
+
+	public void setSignature(String signature) {
+		this.signature = signature;
+	}
 
 	public String getFile() {
 		return file;
@@ -0,0 +1,100 @@
+package edu.nku.firmware.resource;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+
+import edu.nku.firmware.utility.FirmwareVersionListener;
+
+public class UpdateNotificationHub implements FirmwareVersionListener {
+	/*
+	 * Fans out firmware version changes to devices long-polling for them.
+	 * Waiting devices are suspended AsyncResponses, not blocked threads, so
+	 * idle connections only cost an entry in a set. A device that times out
+	 * gets 204 No Content and simply polls again. A model's set only exists
+	 * while someone waits on it: it is changed inside ConcurrentHashMap's
+	 * per-key compute, dropped there once empty, and taken whole when the
+	 * model's version changes.
+	 */
+
+	private static final String TIMEOUT_PROPERTY = "firmware.watch.timeout";
+	private static final int DEFAULT_TIMEOUT_SECONDS = 25;
+
+	private final ConcurrentMap<Long, Set<AsyncResponse>> waiters = new ConcurrentHashMap<>();
+	private final int timeoutSeconds = Integer.getInteger(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_SECONDS);
+
+	public void subscribe(final int vendorId, final int modelId, final AsyncResponse pResponse) {
+		// armed before the waiter is published, since a publish may resume it straight away
+		pResponse.setTimeoutHandler(new TimeoutHandler() {
+			@Override
+			public void handleTimeout(AsyncResponse asyncResponse) {
+				unsubscribe(vendorId, modelId, asyncResponse);
+				asyncResponse.resume(Response.noContent().build());
+			}
+		});
+		pResponse.setTimeout(timeoutSeconds, TimeUnit.SECONDS);
+		waiters.compute(key(vendorId, modelId), new BiFunction<Long, Set<AsyncResponse>, Set<AsyncResponse>>() {
+			@Override
+			public Set<AsyncResponse> apply(Long key, Set<AsyncResponse> models) {
+				if (models == null) {
+					models = Collections.newSetFromMap(new ConcurrentHashMap<AsyncResponse, Boolean>());
+				}
+				models.add(pResponse);
+				return models;
+			}
+		});
+	}
+
+	public void unsubscribe(int vendorId, int modelId, final AsyncResponse pResponse) {
+		waiters.computeIfPresent(key(vendorId, modelId),
+				new BiFunction<Long, Set<AsyncResponse>, Set<AsyncResponse>>() {
+					@Override
+					public Set<AsyncResponse> apply(Long key, Set<AsyncResponse> models) {
+						models.remove(pResponse);
+						return models.isEmpty() ? null : models;
+					}
+				});
+	}
+
+	/*
+	 * The number of models someone is waiting on.
+	 */
+	public int getWatchedModelCount() {
+		return waiters.size();
+	}
+
+	public int getWaiterCount() {
+		int count = 0;
+		for (Set<AsyncResponse> models : waiters.values()) {
+			count += models.size();
+		}
+		return count;
+	}
+
+	@Override
+	public void firmwareVersionChanged(int vendorId, int modelId, int previousVersion, int newVersion) {
+		Set<AsyncResponse> models = waiters.remove(key(vendorId, modelId));
+		if (models == null) {
+			return;
+		}
+		Result oResult = new Result("version");
+		oResult.setFirmware(String.valueOf(vendorId));
+		oResult.setModel(String.valueOf(modelId));
+		oResult.setVersion(newVersion);
+		for (AsyncResponse pResponse : models) {
+			// one that timed out meanwhile is no longer suspended and stays as it is
+			pResponse.resume(oResult);
+		}
+	}
+
+	private static Long key(int vendorId, int modelId) {
+		return ((long) vendorId << 32) | (modelId & 0xffffffffL);
+	}
+}
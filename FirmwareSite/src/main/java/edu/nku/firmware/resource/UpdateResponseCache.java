@@ -0,0 +1,187 @@
+package edu.nku.firmware.resource;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.gson.Gson;
+
+import edu.nku.firmware.utility.CryptoUtility;
+import edu.nku.firmware.utility.FirmwarePackage;
+import edu.nku.firmware.utility.FirmwareVersionListener;
+import edu.nku.firmware.utility.LruCache;
+import edu.nku.firmware.utility.PackageBuilder;
+import edu.nku.firmware.utility.ServiceLogger;
+
+public class UpdateResponseCache implements FirmwareVersionListener {
+	/*
+	 * The encrypted getUpdate response only depends on (vendor, model,
+	 * version, protocol), so it is built once and served to every device
+	 * asking for it. When a model gets a new version, the responses for the
+	 * old one are dropped, as they are when PackageBuilder replaces a
+	 * placeholder with a stored image of the same version. The new version
+	 * is built in the background for any protocol that was being served,
+	 * so polling devices keep hitting the cache. One cache serves every hosted vendor; each vendor's
+	 * responses are encrypted with that vendor's own keys. Images larger
+	 * than firmware.cache.responses.maxPayloadBytes are never cached; they
+	 * are streamed with UpdateResponseStream instead. Delta responses are
+	 * cached under their base version too; a delta never changes, so they
+	 * are only ever evicted.
+	 */
+
+	private static final String MAX_BYTES_PROPERTY = "firmware.cache.responses.maxBytes";
+	private static final long DEFAULT_MAX_BYTES = 64L << 20;
+	private static final String MAX_PAYLOAD_BYTES_PROPERTY = "firmware.cache.responses.maxPayloadBytes";
+	private static final int DEFAULT_MAX_PAYLOAD_BYTES = 1 << 20;
+	private static final int MAX_ENTRIES = 10000;
+	private static final int[] PROTOCOLS = { CryptoUtility.PROTOCOL_RSA_BLOCK, CryptoUtility.PROTOCOL_ENVELOPE };
+
+	private ConcurrentMap<Integer, CryptoUtility> vendorCrypto = new ConcurrentHashMap<>();
+	private PackageBuilder packageBuilder;
+	private ServiceLogger logger;
+	private Gson gson = new Gson();
+	private LruCache<String, String> responses;
+	private ExecutorService warmer;
+	private int maxPayloadBytes;
+
+	public UpdateResponseCache(PackageBuilder packageBuilder, ServiceLogger logger) {
+		this.packageBuilder = packageBuilder;
+		this.logger = logger;
+		this.maxPayloadBytes = Integer.getInteger(MAX_PAYLOAD_BYTES_PROPERTY, DEFAULT_MAX_PAYLOAD_BYTES);
+		this.responses = new LruCache<>(MAX_ENTRIES, Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+				new LruCache.Weigher<String>() {
+					@Override
+					public long weigh(String value) {
+						return 2L * value.length();
+					}
+				});
+		this.warmer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "update-response-warmer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void registerVendor(int vendorId, CryptoUtility crypto) {
+		vendorCrypto.put(vendorId, crypto);
+	}
+
+	public LruCache<String, String> getResponses() {
+		return responses;
+	}
+
+	/*
+	 * Whether responses for this image are small enough to build as a
+	 * String and cache.
+	 */
+	public boolean isCacheable(FirmwarePackage oPackage) {
+		return oPackage.getSize() <= maxPayloadBytes;
+	}
+
+	public String getResponse(String vendorId, String modelId, int version, int protocol) throws IOException {
+		int pVendorId = Integer.parseInt(vendorId);
+		int pModelId = Integer.parseInt(modelId);
+		protocol = normalize(protocol);
+		String key = key(pVendorId, pModelId, version, protocol);
+		String sResponse = responses.get(key);
+		if (sResponse != null) {
+			return sResponse;
+		}
+		sResponse = buildResponse(pVendorId, pModelId, version, protocol);
+		if (sResponse == null) {
+			return null;
+		}
+		return responses.putIfAbsent(key, sResponse);
+	}
+
+	public String getDeltaResponse(FirmwarePackage oDelta, int protocol) throws IOException {
+		protocol = normalize(protocol);
+		String key = key(oDelta.getVendorId(), oDelta.getModelId(), oDelta.getVersion(), protocol) + ":"
+				+ oDelta.getBaseVersion();
+		String sResponse = responses.get(key);
+		if (sResponse != null) {
+			return sResponse;
+		}
+		sResponse = buildResponse(oDelta, protocol);
+		if (sResponse == null) {
+			return null;
+		}
+		return responses.putIfAbsent(key, sResponse);
+	}
+
+	private String buildResponse(int vendorId, int modelId, int version, int protocol) throws IOException {
+		FirmwarePackage oPackage = packageBuilder.getPackage(String.valueOf(vendorId), String.valueOf(modelId),
+				version);
+		if (!isCacheable(oPackage)) {
+			// served by UpdateResponseStream, so there is nothing to warm
+			return null;
+		}
+		return buildResponse(oPackage, protocol);
+	}
+
+	private String buildResponse(FirmwarePackage oPackage, int protocol) throws IOException {
+		CryptoUtility crypto = vendorCrypto.get(oPackage.getVendorId());
+		if (crypto == null) {
+			logger.writeLog("UpdateResponseCache.buildResponse() - No keys registered for vendor "
+					+ oPackage.getVendorId());
+			return null;
+		}
+		Result oResult = new Result("update");
+		oResult.setModel(String.valueOf(oPackage.getModelId()));
+		oResult.setVersion(oPackage.getVersion());
+		oResult.setFirmware(String.valueOf(oPackage.getVendorId()));
+		oResult.setFile(oPackage.getEncodedContent());
+		if (oPackage.isDelta()) {
+			oResult.setBaseVersion(oPackage.getBaseVersion());
+			oResult.setSignature(Base64.encodeBase64String(oPackage.getSignature()));
+		}
+
+		String sResponse = gson.toJson(oResult, Result.class);
+		return crypto.encryptMessage(sResponse, protocol);
+	}
+
+	@Override
+	public void firmwareVersionChanged(final int vendorId, final int modelId, int previousVersion,
+			final int newVersion) {
+		if (!vendorCrypto.containsKey(vendorId)) {
+			return;
+		}
+		for (final int protocol : PROTOCOLS) {
+			if (responses.invalidate(key(vendorId, modelId, previousVersion, protocol)) == null) {
+				continue;
+			}
+			warmer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						getResponse(String.valueOf(vendorId), String.valueOf(modelId), newVersion, protocol);
+					} catch (IOException | RuntimeException e) {
+						logger.writeLog("UpdateResponseCache.warm() - Could not build response for model " + modelId);
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+	}
+
+	public void shutdown() {
+		warmer.shutdownNow();
+	}
+
+	private static int normalize(int protocol) {
+		return (protocol == CryptoUtility.PROTOCOL_ENVELOPE) ? CryptoUtility.PROTOCOL_ENVELOPE
+				: CryptoUtility.PROTOCOL_RSA_BLOCK;
+	}
+
+	private static String key(int vendorId, int modelId, int version, int protocol) {
+		return vendorId + ":" + modelId + ":" + version + ":" + protocol;
+	}
+}
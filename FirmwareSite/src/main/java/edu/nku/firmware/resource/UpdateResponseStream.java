@@ -0,0 +1,92 @@
+package edu.nku.firmware.resource;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import edu.nku.firmware.utility.CryptoUtility;
+import edu.nku.firmware.utility.FirmwarePackage;
+
+public class UpdateResponseStream implements StreamingOutput {
+	/*
+	 * Writes a getUpdate response for one package straight to the client.
+	 * The Result JSON, with the image Base64 encoded inside it, goes
+	 * through the encrypting, hex encoding stream as it is produced, so a
+	 * request holds a few small buffers however large the image is. The
+	 * fields come out in the same order the cached Gson responses use,
+	 * and a delta package adds its base version and signature. The JSON is
+	 * equivalent to Gson's but not byte for byte: Gson escapes the '='
+	 * padding of Base64 strings as \u003d and Jackson writes it as is.
+	 * A response that fails part way is left unterminated rather than
+	 * closed off as an object.
+	 */
+
+	private static final JsonFactory jsonFactory = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
+	private final CryptoUtility crypto;
+	private final FirmwarePackage oPackage;
+	private final int protocol;
+	private final LongAdder bytesServed;
+
+	public UpdateResponseStream(CryptoUtility crypto, FirmwarePackage oPackage, int protocol, LongAdder bytesServed) {
+		this.crypto = crypto;
+		this.oPackage = oPackage;
+		this.protocol = protocol;
+		this.bytesServed = bytesServed;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException {
+		CountingOutputStream counted = new CountingOutputStream(output);
+		OutputStream encrypted = crypto.openEncryptedStream(counted, protocol);
+		// closing the generator closes the encrypting stream too, which writes the last block
+		try (InputStream image = oPackage.openContent();
+				JsonGenerator json = jsonFactory.createGenerator(encrypted, JsonEncoding.UTF8)) {
+			json.writeStartObject();
+			json.writeStringField("action", "update");
+			json.writeStringField("model", String.valueOf(oPackage.getModelId()));
+			json.writeNumberField("version", oPackage.getVersion());
+			json.writeFieldName("file");
+			json.writeBinary(image, oPackage.getSize());
+			json.writeStringField("firmware", String.valueOf(oPackage.getVendorId()));
+			if (oPackage.isDelta()) {
+				json.writeNumberField("baseVersion", oPackage.getBaseVersion());
+				json.writeStringField("signature", Base64.encodeBase64String(oPackage.getSignature()));
+			}
+			json.writeEndObject();
+		} finally {
+			bytesServed.add(counted.count);
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			out.write(data, offset, length);
+			count += length;
+		}
+	}
+}
@@ -2,61 +2,414 @@ package edu.nku.firmware.server;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.Statement;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.servlet.ServletContainer;
 
+import edu.nku.firmware.metrics.MetricsFilter;
+import edu.nku.firmware.metrics.MetricsRegistry;
+import edu.nku.firmware.metrics.MetricsResource;
 import edu.nku.firmware.resource.FirmwareUpdate;
+import edu.nku.firmware.resource.UpdateNotificationHub;
+import edu.nku.firmware.resource.UpdateResponseCache;
 import edu.nku.firmware.utility.CryptoUtility;
+import edu.nku.firmware.utility.ConnectionPool;
 import edu.nku.firmware.utility.DataUtility;
+import edu.nku.firmware.utility.DeltaPackageBuilder;
+import edu.nku.firmware.utility.DownloadTelemetry;
+import edu.nku.firmware.utility.FirmwareCatalog;
+import edu.nku.firmware.utility.InMemoryFirmwareCatalog;
+import edu.nku.firmware.utility.LruCache;
+import edu.nku.firmware.utility.PackageBuilder;
+import edu.nku.firmware.utility.PackageSigner;
 import edu.nku.firmware.utility.ServiceLogger;
+import edu.nku.firmware.utility.WriteBehindQueue;
 
 public class FirmwareSiteServer {
+	/*
+	 * Embeddable server: construct it, then start() and stop() it, or join()
+	 * to block until it stops. Threading and connector settings come from
+	 * firmware.server.* system properties.
+	 *
+	 * The site's own vendor, numbered by the port as before, is served at
+	 * "/". Every other hosted vendor gets its own context at "/<vendorId>"
+	 * with its own key pair, while the database pool, caches and threads
+	 * are shared by all of them.
+	 */
 	private static final int DEFAULT_PORT = 8080;
+
+	private static final String MIN_THREADS_PROPERTY = "firmware.server.minThreads";
+	private static final String MAX_THREADS_PROPERTY = "firmware.server.maxThreads";
+	private static final String THREAD_IDLE_TIMEOUT_PROPERTY = "firmware.server.threadIdleTimeout";
+	private static final String VIRTUAL_THREADS_PROPERTY = "firmware.server.virtualThreads";
+	private static final String ACCEPTORS_PROPERTY = "firmware.server.acceptors";
+	private static final String SELECTORS_PROPERTY = "firmware.server.selectors";
+	private static final String ACCEPT_QUEUE_PROPERTY = "firmware.server.acceptQueueSize";
+	private static final String IDLE_TIMEOUT_PROPERTY = "firmware.server.idleTimeout";
+	private static final String STOP_TIMEOUT_PROPERTY = "firmware.server.stopTimeout";
+	private static final String VENDORS_PROPERTY = "firmware.vendors";
+	private static final String CATALOG_PROPERTY = "firmware.catalog";
+
 	private int serverPort;
+	private List<Integer> vendorIds;
+	private Server server;
+	private ServiceLogger logger;
+	private FirmwareCatalog catalog;
+	private UpdateResponseCache responseCache;
+	private DeltaPackageBuilder deltaBuilder;
+	private PackageSigner packageSigner;
+	private UpdateNotificationHub notificationHub;
+	private DownloadTelemetry telemetry;
+	// undoes each gauge registration, since the registry outlives a stopped server
+	private List<Runnable> gaugeRemovals = new ArrayList<>();
 
-	public FirmwareSiteServer(int serverPort) throws Exception {
+	public FirmwareSiteServer(int serverPort) {
+		this(serverPort, parseVendorIds(System.getProperty(VENDORS_PROPERTY, "")));
+	}
+
+	public FirmwareSiteServer(int serverPort, List<Integer> vendorIds) {
 		this.serverPort = serverPort;
+		Set<Integer> hosted = new LinkedHashSet<>(vendorIds);
+		hosted.remove(serverPort);
+		this.vendorIds = new ArrayList<>(hosted);
+	}
 
-		Server server = configureServer();
-		server.start();
-		server.join();
+	private static List<Integer> parseVendorIds(String sVendors) {
+		List<Integer> oVendorIds = new ArrayList<>();
+		for (String sVendor : sVendors.split(",")) {
+			if (sVendor.trim().isEmpty()) {
+				continue;
+			}
+			try {
+				oVendorIds.add(Integer.parseInt(sVendor.trim()));
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		return oVendorIds;
+	}
+
+	public synchronized void start() throws Exception {
+		if (server != null) {
+			return;
+		}
+		Server oServer = configureServer();
+		oServer.start();
+		server = oServer;
+		logger.writeLog("FirmwareSiteServer - Listening on port " + getLocalPort() + ".");
+	}
+
+	/*
+	 * Stops accepting connections, lets in-flight requests finish for up to
+	 * the stop timeout, then stops background work and flushes pending
+	 * catalog writes and the log.
+	 */
+	public synchronized void stop() throws Exception {
+		if (server == null) {
+			return;
+		}
+		try {
+			server.stop();
+		} finally {
+			// the catalog and the metrics registry may be singletons that outlive this server
+			catalog.removeVersionListener(responseCache);
+			catalog.removeVersionListener(deltaBuilder);
+			catalog.removeVersionListener(packageSigner);
+			catalog.removeVersionListener(notificationHub);
+			for (Runnable removal : gaugeRemovals) {
+				removal.run();
+			}
+			gaugeRemovals.clear();
+			responseCache.shutdown();
+			deltaBuilder.shutdown();
+			packageSigner.shutdown();
+			telemetry.close();
+			catalog.flush();
+			logger.writeLog("FirmwareSiteServer - Stopped.");
+			logger.flush();
+			server = null;
+		}
+	}
+
+	public void join() throws InterruptedException {
+		Server oServer = server;
+		if (oServer != null) {
+			oServer.join();
+		}
+	}
+
+	public int getLocalPort() {
+		Server oServer = server;
+		if (oServer == null) {
+			return -1;
+		}
+		for (Connector connector : oServer.getConnectors()) {
+			if (connector instanceof ServerConnector) {
+				return ((ServerConnector) connector).getLocalPort();
+			}
+		}
+		return -1;
 	}
 
 	private Server configureServer() throws NoSuchAlgorithmException, NoSuchProviderException {
 		
-		ServiceLogger logger = ServiceLogger.getInstance();
+		logger = ServiceLogger.getInstance();
 		DataUtility data = DataUtility.getInstance();
-		CryptoUtility crypto = new CryptoUtility(data, logger);		
-		
+		catalog = createCatalog(data);
+		PackageBuilder packageBuilder = new PackageBuilder(logger);
+		responseCache = new UpdateResponseCache(packageBuilder, logger);
+		catalog.addVersionListener(responseCache);
+		// a stored image replacing a placeholder changes the response for the same version
+		packageBuilder.addImageListener(responseCache);
+		deltaBuilder = new DeltaPackageBuilder(packageBuilder, logger);
+		catalog.addVersionListener(deltaBuilder);
+		packageSigner = new PackageSigner(catalog, packageBuilder, logger);
+		catalog.addVersionListener(packageSigner);
+		notificationHub = new UpdateNotificationHub();
+		catalog.addVersionListener(notificationHub);
+		telemetry = new DownloadTelemetry(data, logger);
+		registerMetrics(data, packageBuilder, responseCache, notificationHub, logger);
+
+		ContextHandlerCollection contexts = new ContextHandlerCollection();
+		for (Integer vendorId : vendorIds) {
+			CryptoUtility crypto = new CryptoUtility(catalog, logger, vendorId);
+			contexts.addHandler(createVendorContext("/" + vendorId, vendorId, crypto, packageBuilder, notificationHub));
+		}
+		CryptoUtility crypto = new CryptoUtility(catalog, logger);
+		contexts.addHandler(createVendorContext("/", serverPort, crypto, packageBuilder, notificationHub));
+		logger.writeLog("FirmwareSiteServer - Hosting vendor " + serverPort + " at / and " + vendorIds.size()
+				+ " more by path.");
+
+		Server oServer = new Server(createThreadPool());
+		ServerConnector connector = new ServerConnector(oServer, Integer.getInteger(ACCEPTORS_PROPERTY, -1),
+				Integer.getInteger(SELECTORS_PROPERTY, -1));
+		connector.setPort(serverPort);
+		connector.setAcceptQueueSize(Integer.getInteger(ACCEPT_QUEUE_PROPERTY, 256));
+		connector.setIdleTimeout(Long.getLong(IDLE_TIMEOUT_PROPERTY, 30000));
+		oServer.addConnector(connector);
+
+		// the statistics handler is what lets a graceful stop wait for in-flight requests
+		StatisticsHandler statistics = new StatisticsHandler();
+		statistics.setHandler(contexts);
+		oServer.setHandler(statistics);
+		oServer.setStopTimeout(Long.getLong(STOP_TIMEOUT_PROPERTY, 5000));
+		return oServer;
+	}
+
+	private FirmwareCatalog createCatalog(DataUtility data) {
+		String sCatalog = System.getProperty(CATALOG_PROPERTY, "sqlite");
+		if ("memory".equalsIgnoreCase(sCatalog)) {
+			return new InMemoryFirmwareCatalog(data, logger);
+		}
+		if (!"sqlite".equalsIgnoreCase(sCatalog)) {
+			logger.writeLog(ServiceLogger.Level.WARN,
+					"FirmwareSiteServer - Unknown catalog '" + sCatalog + "'; using sqlite.");
+		}
+		return data;
+	}
+
+	private ServletContextHandler createVendorContext(String contextPath, int vendorId, CryptoUtility crypto,
+			PackageBuilder packageBuilder, UpdateNotificationHub notificationHub) {
+		responseCache.registerVendor(vendorId, crypto);
+		deltaBuilder.registerVendor(vendorId, crypto);
+		packageSigner.registerVendor(vendorId, crypto);
+
 		Map<String, Object> oPropertyMap = new HashMap<>();
+		oPropertyMap.put("FirmwareCatalog", catalog);
 		oPropertyMap.put("CryptoUtility", crypto);
-		oPropertyMap.put("firmwareID", serverPort);
-		
+		oPropertyMap.put("PackageBuilder", packageBuilder);
+		oPropertyMap.put("UpdateResponseCache", responseCache);
+		oPropertyMap.put("DeltaPackageBuilder", deltaBuilder);
+		oPropertyMap.put("PackageSigner", packageSigner);
+		oPropertyMap.put("UpdateNotificationHub", notificationHub);
+		oPropertyMap.put("DownloadTelemetry", telemetry);
+		oPropertyMap.put("firmwareID", vendorId);
+
 		ResourceConfig resourceConfig = new ResourceConfig();
 		resourceConfig.packages(FirmwareUpdate.class.getPackage().getName());
 		resourceConfig.register(JacksonFeature.class);
-		resourceConfig.setProperties(oPropertyMap);		
-		
-		data.updateFirmwareVersions(serverPort);
-		
+		resourceConfig.register(MetricsFilter.class);
+		if ("/".equals(contextPath)) {
+			// metrics cover the whole process, so they are only served once
+			resourceConfig.register(MetricsResource.class);
+		}
+		resourceConfig.setProperties(oPropertyMap);
+
+		catalog.updateFirmwareVersions(vendorId);
+
 		ServletContainer servletContainer = new ServletContainer(resourceConfig);
 		ServletHolder sh = new ServletHolder(servletContainer);
-		Server server = new Server(serverPort);
-		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
-		context.setContextPath("/");
+		// long-poll watchers are suspended rather than holding a thread each
+		sh.setAsyncSupported(true);
+
+		// devices are stateless, so no HttpSession is ever created
+		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+		context.setContextPath(contextPath);
 		context.addServlet(sh, "/*");
-		server.setHandler(context);
-		return server;
+		return context;
+	}
+
+	private ThreadPool createThreadPool() {
+		if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+			ExecutorService executor = newVirtualThreadExecutor();
+			if (executor != null) {
+				logger.writeLog("FirmwareSiteServer - Handling requests on virtual threads.");
+				return new ExecutorThreadPool(executor);
+			}
+			logger.writeLog(ServiceLogger.Level.WARN,
+					"FirmwareSiteServer - Virtual threads need Java 21 or later; using a thread pool.");
+		}
+		QueuedThreadPool threadPool = new QueuedThreadPool(Integer.getInteger(MAX_THREADS_PROPERTY, 200),
+				Integer.getInteger(MIN_THREADS_PROPERTY, 8), Integer.getInteger(THREAD_IDLE_TIMEOUT_PROPERTY, 60000));
+		threadPool.setName("firmware-site");
+		return threadPool;
+	}
+
+	private ExecutorService newVirtualThreadExecutor() {
+		// looked up reflectively so the server still builds and runs on Java 8
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			logger.writeLog("FirmwareSiteServer.newVirtualThreadExecutor() - Could not create executor.");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void registerMetrics(DataUtility data, PackageBuilder packageBuilder, UpdateResponseCache responseCache,
+			final UpdateNotificationHub notificationHub, final ServiceLogger logger) {
+		MetricsRegistry metrics = MetricsRegistry.getInstance();
+		registerCacheMetrics(metrics, "versions", data.getVersionCache());
+		registerCacheMetrics(metrics, "packages", packageBuilder.getPackageCache());
+		registerCacheMetrics(metrics, "responses", responseCache.getResponses());
+		registerCacheMetrics(metrics, "deltas", deltaBuilder.getDeltaCache());
+
+		final ConnectionPool pool = data.getPool();
+		final DownloadTelemetry downloads = telemetry;
+		gauge(metrics, "firmware_downloads_recorded_total", "Download events queued for telemetry.", "counter",
+				null, null, new MetricsRegistry.Gauge() {
+					public double value() {
+						return downloads.getRecordedCount();
+					}
+				});
+		gauge(metrics, "firmware_downloads_written_total", "Download events written to tblDownloads.", "counter",
+				null, null, new MetricsRegistry.Gauge() {
+					public double value() {
+						return downloads.getWrittenCount();
+					}
+				});
+		gauge(metrics, "firmware_downloads_dropped_total", "Download events dropped because the queue was full.",
+				"counter", null, null, new MetricsRegistry.Gauge() {
+					public double value() {
+						return downloads.getDroppedCount();
+					}
+				});
+
+		final WriteBehindQueue writeBehind = data.getWriteBehindQueue();
+		gauge(metrics, "firmware_db_pending_writes", "Version changes waiting for the write-behind flush.", "gauge",
+				null, null, new MetricsRegistry.Gauge() {
+					public double value() {
+						return writeBehind.getPendingCount();
+					}
+				});
+		gauge(metrics, "firmware_db_written_rows_total", "Version rows committed by the write-behind queue.",
+				"counter", null, null, new MetricsRegistry.Gauge() {
+					public double value() {
+						return writeBehind.getWrittenCount();
+					}
+				});
+		gauge(metrics, "firmware_db_dropped_writes_total",
+				"Version changes dropped because the write-behind queue was full and the database failing.",
+				"counter", null, null, new MetricsRegistry.Gauge() {
+					public double value() {
+						return writeBehind.getDroppedCount();
+					}
+				});
+		gauge(metrics, "firmware_db_pool_connections", "Open pooled database connections.", "gauge", "state",
+				"open", new MetricsRegistry.Gauge() {
+					public double value() {
+						return pool.getOpenCount();
+					}
+				});
+		gauge(metrics, "firmware_db_pool_connections", "Open pooled database connections.", "gauge", "state",
+				"idle", new MetricsRegistry.Gauge() {
+					public double value() {
+						return pool.getIdleCount();
+					}
+				});
+		gauge(metrics, "firmware_watch_waiters", "Devices suspended on a long-poll watch.", "gauge", null, null,
+				new MetricsRegistry.Gauge() {
+					public double value() {
+						return notificationHub.getWaiterCount();
+					}
+				});
+		gauge(metrics, "firmware_log_dropped_total", "Log lines dropped because the log queue was full.", "counter",
+				null, null, new MetricsRegistry.Gauge() {
+					public double value() {
+						return logger.getDroppedCount();
+					}
+				});
+	}
+
+	private void gauge(final MetricsRegistry metrics, final String name, String help, String type,
+			final String labelName, final String labelValue, final MetricsRegistry.Gauge gauge) {
+		metrics.gauge(name, help, type, labelName, labelValue, gauge);
+		gaugeRemovals.add(new Runnable() {
+			@Override
+			public void run() {
+				metrics.removeGauge(name, labelName, labelValue, gauge);
+			}
+		});
+	}
+
+	private void registerCacheMetrics(MetricsRegistry metrics, String name, final LruCache<?, ?> cache) {
+		gauge(metrics, "firmware_cache_hits_total", "Cache lookups that found an entry.", "counter", "cache", name,
+				new MetricsRegistry.Gauge() {
+					public double value() {
+						return cache.getHitCount();
+					}
+				});
+		gauge(metrics, "firmware_cache_misses_total", "Cache lookups that found nothing.", "counter", "cache", name,
+				new MetricsRegistry.Gauge() {
+					public double value() {
+						return cache.getMissCount();
+					}
+				});
+		gauge(metrics, "firmware_cache_evictions_total", "Entries evicted to stay within bounds.", "counter", "cache",
+				name, new MetricsRegistry.Gauge() {
+					public double value() {
+						return cache.getEvictionCount();
+					}
+				});
+		gauge(metrics, "firmware_cache_entries", "Entries currently cached.", "gauge", "cache", name,
+				new MetricsRegistry.Gauge() {
+					public double value() {
+						return cache.size();
+					}
+				});
 	}
 	
 
@@ -69,8 +422,30 @@ public class FirmwareSiteServer {
 				e.printStackTrace();
 			}
 		}
+		// any further arguments are more vendors to host, on top of firmware.vendors
+		List<Integer> vendorIds = parseVendorIds(System.getProperty(VENDORS_PROPERTY, ""));
+		for (int i = 1; i < args.length; i++) {
+			vendorIds.addAll(parseVendorIds(args[i]));
+		}
 
-		new FirmwareSiteServer(serverPort);
+		final FirmwareSiteServer firmwareSiteServer = new FirmwareSiteServer(serverPort, vendorIds);
+		// stop gracefully on SIGTERM, and only then close the log
+		final ServiceLogger logger = ServiceLogger.getInstance();
+		logger.removeShutdownHook();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					firmwareSiteServer.stop();
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					logger.shutdown();
+				}
+			}
+		}, "firmware-site-shutdown"));
+		firmwareSiteServer.start();
+		firmwareSiteServer.join();
 	}
 
 }
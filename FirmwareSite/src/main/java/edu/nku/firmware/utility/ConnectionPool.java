@@ -0,0 +1,139 @@
+package edu.nku.firmware.utility;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.nku.firmware.metrics.LatencyHistogram;
+import edu.nku.firmware.metrics.MetricsRegistry;
+
+public class ConnectionPool {
+	/*
+	 * A fixed-size pool of long-lived SQLite connections. Connections are
+	 * opened lazily up to the pool size and leased to one thread at a time.
+	 * Every connection waits up to firmware.db.busyTimeoutSeconds for
+	 * another connection's write lock before SQLite reports it busy.
+	 */
+
+	private static final long LEASE_TIMEOUT_SECONDS = 30;
+	private static final String BUSY_TIMEOUT_PROPERTY = "firmware.db.busyTimeoutSeconds";
+	private static final int DEFAULT_BUSY_TIMEOUT_SECONDS = 10;
+
+	private final ServiceLogger logger;
+	private final String url;
+	private final int poolSize;
+	private final int busyTimeoutSeconds;
+	private final BlockingQueue<PooledConnection> idle;
+	private final AtomicInteger opened = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	// only leases that found the pool exhausted are timed
+	private final LatencyHistogram waitTimer = MetricsRegistry.getInstance().histogram(
+			"firmware_db_pool_wait_seconds", "Time spent waiting for a pooled connection.", null, null);
+
+	public ConnectionPool(String url, int poolSize) {
+		this.logger = ServiceLogger.getInstance();
+		this.url = url;
+		this.poolSize = Math.max(1, poolSize);
+		this.busyTimeoutSeconds = Math.max(0, Integer.getInteger(BUSY_TIMEOUT_PROPERTY, DEFAULT_BUSY_TIMEOUT_SECONDS));
+		this.idle = new LinkedBlockingQueue<>(this.poolSize);
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e) {
+			logger.writeLog("ConnectionPool.init() - org.sqlite.JDBC not found");
+			e.printStackTrace();
+		}
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	public int getOpenCount() {
+		return opened.get();
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public PooledConnection lease() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		PooledConnection conn = idle.poll();
+		if (conn != null) {
+			return conn;
+		}
+		if (opened.incrementAndGet() <= poolSize) {
+			try {
+				return open();
+			} catch (SQLException e) {
+				opened.decrementAndGet();
+				throw e;
+			}
+		}
+		opened.decrementAndGet();
+		long start = System.nanoTime();
+		try {
+			conn = idle.poll(LEASE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		} finally {
+			waitTimer.observeSince(start);
+		}
+		if (conn == null) {
+			throw new SQLException("Timed out waiting for a connection");
+		}
+		return conn;
+	}
+
+	public void release(PooledConnection conn) {
+		if (conn == null) {
+			return;
+		}
+		if (closed || conn.isBroken() || !idle.offer(conn)) {
+			discard(conn);
+		}
+	}
+
+	public void close() {
+		closed = true;
+		PooledConnection conn;
+		while ((conn = idle.poll()) != null) {
+			discard(conn);
+		}
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection conn = DriverManager.getConnection(url);
+		Statement state = conn.createStatement();
+		try {
+			state.execute("PRAGMA journal_mode=WAL");
+			state.execute("PRAGMA synchronous=NORMAL");
+			// the bundled driver sets the connection's busy handler from the query timeout; newer
+			// SQLite libraries read the pragma instead and older ones ignore it
+			state.setQueryTimeout(busyTimeoutSeconds);
+			state.execute("PRAGMA busy_timeout=" + (busyTimeoutSeconds * 1000));
+		} finally {
+			state.close();
+		}
+		return new PooledConnection(conn);
+	}
+
+	private void discard(PooledConnection conn) {
+		opened.decrementAndGet();
+		try {
+			conn.closeConnection();
+		} catch (SQLException e) {
+			logger.writeLog("ConnectionPool.discard() - Could not close connection.");
+			e.printStackTrace();
+		}
+	}
+}
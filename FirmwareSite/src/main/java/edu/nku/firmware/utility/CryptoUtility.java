@@ -1,11 +1,15 @@
 package edu.nku.firmware.utility;
 
-import java.io.BufferedInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
@@ -17,60 +21,179 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.security.interfaces.RSAKey;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.nku.firmware.metrics.LatencyHistogram;
+import edu.nku.firmware.metrics.MetricsRegistry;
 
 public class CryptoUtility {
 	/*
 	 * Java Utility Class to handle encryption/decryption of messages.
+	 * One instance is shared by every request: keys are loaded once, and
+	 * since Cipher and Signature are not thread-safe each thread gets its own.
+	 * Firmware images and deltas are signed with a separate ECDSA P-256 key
+	 * pair; the RSA key pair only encrypts and signs responses, and stays
+	 * 1024 bits because protocol 1 devices depend on its block sizes.
 	 */
 	// private DataUtility data;
-	private DataUtility data;
+	private FirmwareCatalog data;
 	private ServiceLogger logger;
+	// null for the site's own key pair, otherwise the hosted vendor it belongs to
+	private Integer vendorId;
 	private PublicKey sPublicKey;
 	private PrivateKey sPrivateKey;
-	private Cipher cipher;
+	private PublicKey sSigningPublicKey;
+	private PrivateKey sSigningPrivateKey;
+	private byte[] encodedPublicKey;
 	private String defaultAlgorithm = "RSA";
+	private String signingKeyAlgorithm = "EC";
+	private String signingCurve = "secp256r1";
+	private String signatureAlgorithm = "SHA256withECDSA";
 
-	public CryptoUtility() {
-		this.data = DataUtility.getInstance();
-		this.logger = ServiceLogger.getInstance();
-		try {
-			this.cipher = Cipher.getInstance(defaultAlgorithm);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			logger.writeLog("CryptoUtility.init() - Could not generate cipher.");
-			e.printStackTrace();
+	private final LatencyHistogram rsaBlockTimer = cryptoTimer("encryptMessage");
+	private final LatencyHistogram envelopeTimer = cryptoTimer("encryptEnvelope");
+	private final LatencyHistogram streamTimer = cryptoTimer("encryptStream");
+	private final LatencyHistogram signTimer = cryptoTimer("sign");
+	private final LatencyHistogram signFileTimer = cryptoTimer("signFile");
+
+	private final ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			return newCipher(defaultAlgorithm);
 		}
-		setUpKeys();
+	};
+
+	// already initialized with the private key; an RSA cipher resets itself after doFinal
+	private final ThreadLocal<Cipher> privateCipher = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			Cipher oCipher = newCipher(defaultAlgorithm);
+			try {
+				oCipher.init(Cipher.ENCRYPT_MODE, sPrivateKey);
+			} catch (InvalidKeyException e) {
+				logger.writeLog("CryptoUtility.privateCipher() - Failed to init cipher.");
+				e.printStackTrace();
+			}
+			return oCipher;
+		}
+	};
+
+	private final ThreadLocal<Cipher> envelopeCipher = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			return newCipher(ENVELOPE_ALGORITHM);
+		}
+	};
+
+	private final ThreadLocal<Signature> envelopeSigner = new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			try {
+				return Signature.getInstance(ENVELOPE_SIGNATURE_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				logger.writeLog("CryptoUtility.envelopeSigner() - Could not create signature.");
+				e.printStackTrace();
+			}
+			return null;
+		}
+	};
+
+	private final ThreadLocal<Signature> signer = new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			try {
+				Signature sSignature = Signature.getInstance(signatureAlgorithm);
+				sSignature.initSign(sSigningPrivateKey);
+				return sSignature;
+			} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+				logger.writeLog("CryptoUtility.signer() - Could not create signature.");
+				e.printStackTrace();
+			}
+			return null;
+		}
+	};
+
+	/*
+	 * Response protocols a device can negotiate. Version 1 is raw RSA over
+	 * 100 byte blocks. Version 2 is an envelope: a per-response AES-GCM key
+	 * wrapped once with RSA, followed by the AES-GCM encrypted body and an
+	 * RSA signature over all of it.
+	 */
+	public static final int PROTOCOL_RSA_BLOCK = 1;
+	public static final int PROTOCOL_ENVELOPE = 2;
+
+	private static final String ENVELOPE_ALGORITHM = "AES/GCM/NoPadding";
+	private static final int ENVELOPE_KEY_BITS = 128;
+	private static final int ENVELOPE_IV_BYTES = 12;
+	private static final int ENVELOPE_TAG_BITS = 128;
+	private static final String ENVELOPE_SIGNATURE_ALGORITHM = "SHA256withRSA";
+	private static final SecureRandom envelopeRandom = new SecureRandom();
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	// per thread, so a Jetty pool of a few hundred threads keeps a few MB in total
+	private static final int MAX_SCRATCH_BYTES = 16 << 10;
+	private static final long SIGN_MAP_BYTES = 64L << 20;
+	private static final ThreadLocal<byte[]> scratchBytes = new ThreadLocal<>();
+	private static final ThreadLocal<char[]> scratchChars = new ThreadLocal<>();
+	// tblSigningKeys id of the site's own signing key; hosted vendors use their vendor id
+	private static final int SITE_SIGNING_KEY_ID = 0;
+
+	public CryptoUtility() {
+		this(DataUtility.getInstance(), ServiceLogger.getInstance());
+	}
+
+	public CryptoUtility(FirmwareCatalog data, ServiceLogger logger) {
+		this(data, logger, null);
 	}
 
-	public CryptoUtility(DataUtility data, ServiceLogger logger) {
+	public CryptoUtility(FirmwareCatalog data, ServiceLogger logger, Integer vendorId) {
 		this.data = data;
 		this.logger = logger;
+		this.vendorId = vendorId;
+		setUpKeys();
+		setUpSigningKeys();
+		if (sPublicKey != null) {
+			this.encodedPublicKey = sPublicKey.getEncoded();
+		}
+	}
+
+	private Cipher newCipher(String algorithm) {
 		try {
-			this.cipher = Cipher.getInstance(defaultAlgorithm);
+			return Cipher.getInstance(algorithm);
 		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			logger.writeLog("CryptoUtility.init(DataUtility, ServiceLogger) - Could not generate cipher.");
+			logger.writeLog("CryptoUtility.newCipher() - Could not generate cipher.");
 			e.printStackTrace();
 		}
-		setUpKeys();
+		return null;
 	}
 
 	private void setUpKeys() {
-		logger.writeLog("Crypto - Beginning setup key");
+		logger.debug("Crypto - Beginning setup key");
 		if (sPublicKey != null && sPrivateKey != null) {
 			return;
 		} else {
-			byte[] publicBytes = data.retrievePublicKey();
-			byte[] privateBytes = data.retrievePrivateKey();
+			byte[] publicBytes = (vendorId == null) ? data.retrievePublicKey() : data.retrieveVendorPublicKey(vendorId);
+			byte[] privateBytes = (vendorId == null) ? data.retrievePrivateKey()
+					: data.retrieveVendorPrivateKey(vendorId);
 			if (publicBytes != null && privateBytes != null) {
 				PublicKey pubKey = inflatePublicKey(publicBytes);
 				PrivateKey privKey = inflatePrivateKey(privateBytes);
@@ -100,13 +223,43 @@ public class CryptoUtility {
 			this.sPublicKey = pair.getPublic();
 			byte[] pub = sPublicKey.getEncoded();
 			byte[] pri = sPrivateKey.getEncoded();
-			data.storeKeyPair(pub, pri);
+			if (vendorId == null) {
+				data.storeKeyPair(pub, pri);
+			} else {
+				data.storeVendorKeyPair(vendorId, pub, pri);
+			}
 		} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
 			logger.writeLog("CryptoUtility.generateKeys() - Key Generation Failed.");
 			e.printStackTrace();
 		}
 	}
 
+	private void setUpSigningKeys() {
+		int keyId = (vendorId == null) ? SITE_SIGNING_KEY_ID : vendorId;
+		byte[] publicBytes = data.retrieveSigningPublicKey(keyId);
+		byte[] privateBytes = data.retrieveSigningPrivateKey(keyId);
+		if (publicBytes != null && privateBytes != null) {
+			sSigningPublicKey = inflatePublicKey(publicBytes, signingKeyAlgorithm);
+			sSigningPrivateKey = inflatePrivateKey(privateBytes, signingKeyAlgorithm);
+			if (sSigningPublicKey != null && sSigningPrivateKey != null) {
+				return;
+			}
+			logger.writeLog("Crypto - Signing key inflation failed.");
+		}
+		logger.writeLog("Crypto - Beginning signing key generation.");
+		try {
+			KeyPairGenerator keyGen = KeyPairGenerator.getInstance(signingKeyAlgorithm);
+			keyGen.initialize(new ECGenParameterSpec(signingCurve), new SecureRandom());
+			KeyPair pair = keyGen.generateKeyPair();
+			this.sSigningPrivateKey = pair.getPrivate();
+			this.sSigningPublicKey = pair.getPublic();
+			data.storeSigningKeyPair(keyId, sSigningPublicKey.getEncoded(), sSigningPrivateKey.getEncoded());
+		} catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+			logger.writeLog("CryptoUtility.setUpSigningKeys() - Key Generation Failed.");
+			e.printStackTrace();
+		}
+	}
+
 	private PrivateKey inflatePrivateKey(byte[] keyBytes) {
 		return inflatePrivateKey(keyBytes, defaultAlgorithm);
 	}
@@ -172,85 +325,256 @@ public class CryptoUtility {
 		return this.sPublicKey;
 	}
 
+	public byte[] getEncodedPublicKey() {
+		return this.encodedPublicKey;
+	}
+
+	/*
+	 * The public half of the key that signs firmware images and deltas.
+	 */
+	public PublicKey getSigningPublicKey() {
+		return this.sSigningPublicKey;
+	}
+
 	public String encryptMessage(String message, PublicKey publicKey) {
 		try {
-			this.cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+			Cipher oCipher = cipher.get();
+			oCipher.init(Cipher.ENCRYPT_MODE, publicKey);
 			byte[] bytes = message.getBytes("UTF-8");
-			byte[] encrypted = blockCipher(bytes,Cipher.ENCRYPT_MODE);
-			char[] encryptedTranspherable = Hex.encodeHex(encrypted);
-			return new String(encryptedTranspherable);
-		} catch (InvalidKeyException | UnsupportedEncodingException | IllegalBlockSizeException | BadPaddingException e) {
+			return blockCipherToHex(oCipher, bytes, Cipher.ENCRYPT_MODE);
+		} catch (InvalidKeyException | UnsupportedEncodingException | IllegalBlockSizeException | BadPaddingException
+				| ShortBufferException e) {
 			logger.writeLog("Failed to encrypt message");
 			e.printStackTrace();
 		}
 		return null;
 	}
 	
-	private byte[] blockCipher(byte[] bytes, int mode) throws IllegalBlockSizeException, BadPaddingException{
-		// string initialize 2 buffers.
-		// scrambled will hold intermediate results
-		byte[] scrambled = new byte[0];
+	private String blockCipherToHex(Cipher cipher, byte[] bytes, int mode)
+			throws IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+		// size the output once, encrypt into it, then hex encode straight from it
+		byte[] output = scratchBytes(blockCipherOutputSize(cipher, bytes.length, mode));
+		int length = blockCipher(cipher, bytes, mode, output);
+		char[] hex = scratchChars(length * 2);
+		encodeHex(output, length, hex);
+		return new String(hex, 0, length * 2);
+	}
+
+	private int blockCipherOutputSize(Cipher cipher, int inputLength, int mode) {
+		int length = blockLength(mode);
+		int blocks = Math.max(1, (inputLength + length - 1) / length);
+		return blocks * cipher.getOutputSize(length);
+	}
 
-		// toReturn will hold the total result
-		byte[] toReturn = new byte[0];
+	private int blockLength(int mode) {
 		// if we encrypt we use 100 byte long blocks. Decryption requires 128 byte long blocks (because of RSA)
-		int length = (mode == Cipher.ENCRYPT_MODE)? 100 : 128;
+		return (mode == Cipher.ENCRYPT_MODE) ? 100 : 128;
+	}
+
+	private int blockCipher(Cipher cipher, byte[] bytes, int mode, byte[] output)
+			throws IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+		int length = blockLength(mode);
+		if (bytes.length < length) {
+			// a message shorter than one block has always been sent as a full, zero padded block
+			bytes = Arrays.copyOf(bytes, length);
+		}
+		int offset = 0;
+		int outputOffset = 0;
+		// the last block may be shorter than length
+		do {
+			int blockLength = Math.min(length, bytes.length - offset);
+			outputOffset += cipher.doFinal(bytes, offset, blockLength, output, outputOffset);
+			offset += blockLength;
+		} while (offset < bytes.length);
+		return outputOffset;
+	}
 
-		// another buffer. this one will hold the bytes that have to be modified in this step
-		byte[] buffer = new byte[length];
+	private static void encodeHex(byte[] data, int length, char[] out) {
+		for (int i = 0, j = 0; i < length; i++) {
+			out[j++] = HEX_DIGITS[(data[i] & 0xF0) >>> 4];
+			out[j++] = HEX_DIGITS[data[i] & 0x0F];
+		}
+	}
 
-		for (int i=0; i< bytes.length; i++){
+	private static byte[] scratchBytes(int size) {
+		// buffers are reused per thread only for small messages; anything larger gets a one-off
+		// array, so a single firmware image never stays pinned to a request thread
+		if (size > MAX_SCRATCH_BYTES) {
+			return new byte[size];
+		}
+		byte[] buffer = scratchBytes.get();
+		if (buffer == null || buffer.length < size) {
+			buffer = new byte[size];
+			scratchBytes.set(buffer);
+		}
+		return buffer;
+	}
 
-			// if we filled our buffer array we have our block ready for de- or encryption
-			if ((i > 0) && (i % length == 0)){
-				//execute the operation
-				scrambled = cipher.doFinal(buffer);
-				// add the result to our total result.
-				toReturn = append(toReturn,scrambled);
-				// here we calculate the length of the next buffer required
-				int newlength = length;
+	private static char[] scratchChars(int size) {
+		if (size > MAX_SCRATCH_BYTES * 2) {
+			return new char[size];
+		}
+		char[] buffer = scratchChars.get();
+		if (buffer == null || buffer.length < size) {
+			buffer = new char[size];
+			scratchChars.set(buffer);
+		}
+		return buffer;
+	}
 
-				// if newlength would be longer than remaining bytes in the bytes array we shorten it.
-				if (i + length > bytes.length) {
-					 newlength = bytes.length - i;
-				}
-				// clean the buffer array
-				buffer = new byte[newlength];
-			}
-			// copy byte into our buffer.
-			buffer[i%length] = bytes[i];
+	public String encryptMessage(String message) {
+		long start = System.nanoTime();
+		try {
+			byte[] bytes = message.getBytes("UTF-8");
+			return blockCipherToHex(privateCipher.get(), bytes, Cipher.ENCRYPT_MODE);
+		} catch (UnsupportedEncodingException | IllegalBlockSizeException | BadPaddingException
+				| ShortBufferException e) {
+			logger.writeLog("CryptoUtility.encryptMessage() - Failed to init cipher.");
+			e.printStackTrace();
+		} finally {
+			rsaBlockTimer.observeSince(start);
 		}
+		return null;
+	}
 
-		// this step is needed if we had a trailing buffer. should only happen when encrypting.
-		// example: we encrypt 110 bytes. 100 bytes per run means we "forgot" the last 10 bytes. they are in the buffer array
-		scrambled = cipher.doFinal(buffer);
+	public String encryptMessage(String message, int protocol) {
+		if (protocol == PROTOCOL_ENVELOPE) {
+			return encryptEnvelope(message);
+		}
+		return encryptMessage(message);
+	}
 
-		// final step before we can return the modified data.
-		toReturn = append(toReturn,scrambled);
+	private String encryptEnvelope(String message) {
+		/*
+		 * Envelope layout, hex encoded as a whole:
+		 * [protocol (1)][wrapped key length (2)][wrapped key][IV (12)][ciphertext + GCM tag][signature]
+		 * The AES key is wrapped with the private key, the same way protocol 1
+		 * encrypts its blocks, so devices unwrap it with the vendor public key;
+		 * so can anyone else who has that key. What a device must check is the
+		 * signature: SHA256withRSA with the same private key over every byte
+		 * before it, as long as the RSA modulus. See decryptEnvelope().
+		 */
+		long start = System.nanoTime();
+		try {
+			Cipher aes = envelopeCipher.get();
+			byte[] header = startEnvelope(aes);
+			byte[] bytes = message.getBytes("UTF-8");
 
-		return toReturn;
+			ByteBuffer envelope = ByteBuffer
+					.allocate(header.length + aes.getOutputSize(bytes.length) + envelopeSignatureLength(sPublicKey));
+			envelope.put(header);
+			aes.doFinal(ByteBuffer.wrap(bytes), envelope);
+			Signature signature = envelopeSigner.get();
+			signature.initSign(sPrivateKey);
+			signature.update(envelope.array(), 0, envelope.position());
+			envelope.put(signature.sign());
+			return new String(Hex.encodeHex(envelope.array()));
+		} catch (UnsupportedEncodingException | NoSuchAlgorithmException | InvalidKeyException
+				| InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException
+				| ShortBufferException | SignatureException e) {
+			logger.writeLog("CryptoUtility.encryptEnvelope() - Failed to encrypt message.");
+			e.printStackTrace();
+		} finally {
+			envelopeTimer.observeSince(start);
+		}
+		return null;
 	}
-	
-	private byte[] append(byte[] prefix, byte[] suffix){
-		byte[] toReturn = new byte[prefix.length + suffix.length];
-		for (int i=0; i< prefix.length; i++){
-			toReturn[i] = prefix[i];
+
+	/*
+	 * Streaming form of encryptMessage(String, int): bytes written to the
+	 * returned stream are encrypted and hex encoded into out as they
+	 * arrive, so the output matches encryptMessage for the same bytes but
+	 * only a block or a buffer of it is held at a time. Closing the stream
+	 * writes the last block and flushes out without closing it. The stream
+	 * uses this thread's ciphers and must be written on one thread.
+	 */
+	public OutputStream openEncryptedStream(OutputStream out, int protocol) throws IOException {
+		HexOutputStream hex = new HexOutputStream(out);
+		if (protocol != PROTOCOL_ENVELOPE) {
+			return new RsaBlockOutputStream(hex, privateCipher.get(), System.nanoTime());
 		}
-		for (int i=0; i< suffix.length; i++){
-			toReturn[i+prefix.length] = suffix[i];
+		long start = System.nanoTime();
+		try {
+			Cipher aes = envelopeCipher.get();
+			Signature signature = envelopeSigner.get();
+			signature.initSign(sPrivateKey);
+			SigningOutputStream signed = new SigningOutputStream(hex, signature);
+			signed.write(startEnvelope(aes));
+			return new TimedCipherOutputStream(signed, aes, start);
+		} catch (NoSuchAlgorithmException | IllegalBlockSizeException | BadPaddingException | InvalidKeyException
+				| InvalidAlgorithmParameterException e) {
+			logger.writeLog("CryptoUtility.openEncryptedStream() - Failed to init cipher.");
+			throw new IOException(e);
 		}
-		return toReturn;
 	}
 
-	public String encryptMessage(String message) {
+	/*
+	 * Sets aes up with a new content key and IV and returns the envelope
+	 * header that goes in front of its output: everything up to and
+	 * including the IV.
+	 */
+	private byte[] startEnvelope(Cipher aes) throws NoSuchAlgorithmException, IllegalBlockSizeException,
+			BadPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+		KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+		keyGen.init(ENVELOPE_KEY_BITS, envelopeRandom);
+		SecretKey contentKey = keyGen.generateKey();
+
+		byte[] wrappedKey = privateCipher.get().doFinal(contentKey.getEncoded());
+
+		byte[] iv = new byte[ENVELOPE_IV_BYTES];
+		envelopeRandom.nextBytes(iv);
+		aes.init(Cipher.ENCRYPT_MODE, contentKey, new GCMParameterSpec(ENVELOPE_TAG_BITS, iv));
+
+		ByteBuffer header = ByteBuffer.allocate(1 + 2 + wrappedKey.length + iv.length);
+		header.put((byte) PROTOCOL_ENVELOPE);
+		header.putShort((short) wrappedKey.length);
+		header.put(wrappedKey);
+		header.put(iv);
+		return header.array();
+	}
+
+	private static int envelopeSignatureLength(PublicKey publicKey) {
+		return (((RSAKey) publicKey).getModulus().bitLength() + 7) / 8;
+	}
+
+	/*
+	 * Opens a protocol 2 response the way a device must: the signature is
+	 * checked against the vendor public key before anything inside the
+	 * envelope is used. Returns null when the envelope is malformed, does
+	 * not verify or does not decrypt.
+	 */
+	public String decryptEnvelope(String message, PublicKey otherPublicKey) {
 		try {
-			this.cipher.init(Cipher.ENCRYPT_MODE, this.sPrivateKey);
-			byte[] bytes = message.getBytes("UTF-8");
-			byte[] encrypted = blockCipher(bytes,Cipher.ENCRYPT_MODE);
-			char[] encryptedTranspherable = Hex.encodeHex(encrypted);
-			return new String(encryptedTranspherable);
-		} catch (UnsupportedEncodingException | IllegalBlockSizeException | BadPaddingException | InvalidKeyException e) {
-			logger.writeLog("CryptoUtility.encryptMessage() - Failed to init cipher.");
+			byte[] envelope = Hex.decodeHex(message.toCharArray());
+			int signed = envelope.length - envelopeSignatureLength(otherPublicKey);
+			if (signed < 3 || envelope[0] != PROTOCOL_ENVELOPE) {
+				logger.writeLog("CryptoUtility.decryptEnvelope() - Not an envelope.");
+				return null;
+			}
+			Signature verifier = Signature.getInstance(ENVELOPE_SIGNATURE_ALGORITHM);
+			verifier.initVerify(otherPublicKey);
+			verifier.update(envelope, 0, signed);
+			if (!verifier.verify(envelope, signed, envelope.length - signed)) {
+				logger.writeLog("CryptoUtility.decryptEnvelope() - Envelope signature does not verify.");
+				return null;
+			}
+
+			ByteBuffer in = ByteBuffer.wrap(envelope, 0, signed);
+			in.get();
+			byte[] wrappedKey = new byte[in.getShort() & 0xFFFF];
+			in.get(wrappedKey);
+			byte[] iv = new byte[ENVELOPE_IV_BYTES];
+			in.get(iv);
+			Cipher rsa = cipher.get();
+			rsa.init(Cipher.DECRYPT_MODE, otherPublicKey);
+			SecretKey contentKey = new SecretKeySpec(rsa.doFinal(wrappedKey), "AES");
+			Cipher aes = envelopeCipher.get();
+			aes.init(Cipher.DECRYPT_MODE, contentKey, new GCMParameterSpec(ENVELOPE_TAG_BITS, iv));
+			return new String(aes.doFinal(envelope, in.position(), signed - in.position()), "UTF-8");
+		} catch (DecoderException | BufferUnderflowException | NoSuchAlgorithmException | InvalidKeyException
+				| InvalidAlgorithmParameterException | SignatureException | IllegalBlockSizeException
+				| BadPaddingException | UnsupportedEncodingException e) {
+			logger.writeLog("CryptoUtility.decryptEnvelope() - Failed to open envelope.");
 			e.printStackTrace();
 		}
 		return null;
@@ -258,9 +582,10 @@ public class CryptoUtility {
 
 	public String decryptMessage(String message, PublicKey otherPublicKey) {
 		try {
-			this.cipher.init(Cipher.DECRYPT_MODE, otherPublicKey);
+			Cipher oCipher = cipher.get();
+			oCipher.init(Cipher.DECRYPT_MODE, otherPublicKey);
 			try {
-				return new String(cipher.doFinal(Base64.decodeBase64(message)), "UTF-8");
+				return new String(oCipher.doFinal(Base64.decodeBase64(message)), "UTF-8");
 			} catch (UnsupportedEncodingException | IllegalBlockSizeException | BadPaddingException e) {
 				logger.writeLog("CryptoUtility.decryptMessage() - Failed to decode string.");
 				e.printStackTrace();
@@ -272,21 +597,247 @@ public class CryptoUtility {
 		return null;
 	}
 
-	public String signFile(String pFile) throws IOException, NoSuchAlgorithmException, NoSuchProviderException,
-			InvalidKeyException, SignatureException {
-		Signature sSignature = Signature.getInstance("SHA1withRSA");
-		sSignature.initSign(sPrivateKey);
+	public String getSignatureAlgorithm() {
+		return signatureAlgorithm;
+	}
+
+	public byte[] sign(byte[] content) throws InvalidKeyException, SignatureException {
+		long start = System.nanoTime();
+		try {
+			Signature sSignature = signer.get();
+			sSignature.initSign(sSigningPrivateKey);
+			sSignature.update(content);
+			return sSignature.sign();
+		} finally {
+			signTimer.observeSince(start);
+		}
+	}
+
+	/*
+	 * Signs a firmware image without copying it onto the heap: the file is
+	 * mapped in SIGN_MAP_BYTES windows and each window is digested straight
+	 * from the page cache. Returns the raw signature bytes.
+	 */
+	public byte[] signFile(Path file) throws IOException, InvalidKeyException, SignatureException {
+		long start = System.nanoTime();
+		Signature sSignature = signer.get();
+		// re-arming is cheap and discards anything left over from a failed call
+		sSignature.initSign(sSigningPrivateKey);
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			for (long position = 0; position < size; position += SIGN_MAP_BYTES) {
+				sSignature.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(SIGN_MAP_BYTES, size - position)));
+			}
+			return sSignature.sign();
+		} finally {
+			channel.close();
+			signFileTimer.observeSince(start);
+		}
+	}
+
+	/*
+	 * Hex encodes everything written into out. close() flushes but leaves
+	 * out open, since it usually belongs to the container.
+	 */
+	private static class HexOutputStream extends FilterOutputStream {
+		private final byte[] buffer = new byte[8192];
+		private int count = 0;
+
+		HexOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count + 2 > buffer.length) {
+				flushBuffer();
+			}
+			buffer[count++] = (byte) HEX_DIGITS[(b & 0xF0) >>> 4];
+			buffer[count++] = (byte) HEX_DIGITS[b & 0x0F];
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			for (int i = offset; i < offset + length; i++) {
+				if (count + 2 > buffer.length) {
+					flushBuffer();
+				}
+				buffer[count++] = (byte) HEX_DIGITS[(data[i] & 0xF0) >>> 4];
+				buffer[count++] = (byte) HEX_DIGITS[data[i] & 0x0F];
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		private void flushBuffer() throws IOException {
+			if (count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+	}
+
+	/*
+	 * Protocol 1 as a stream: RSA over 100 byte blocks, a short last block
+	 * as is, and a message shorter than one block zero padded to a full one.
+	 */
+	private class RsaBlockOutputStream extends FilterOutputStream {
+		private final Cipher cipher;
+		private final long start;
+		private final byte[] block;
+		private final byte[] encrypted;
+		private int count = 0;
+		private long total = 0;
+		private boolean closed = false;
 
-		InputStream oInputStream = Files.newInputStream(Paths.get(pFile));
-		BufferedInputStream oBuffInput = new BufferedInputStream(oInputStream);
-		byte[] buffer = new byte[1024];
-		int len;
-		while ((len = oBuffInput.read(buffer)) >= 0) {
-			sSignature.update(buffer, 0, len);
+		RsaBlockOutputStream(OutputStream out, Cipher cipher, long start) {
+			super(out);
+			this.cipher = cipher;
+			this.start = start;
+			this.block = new byte[blockLength(Cipher.ENCRYPT_MODE)];
+			this.encrypted = new byte[cipher.getOutputSize(block.length)];
 		}
-		;
-		oBuffInput.close();
-		return new String(sSignature.sign());
+
+		@Override
+		public void write(int b) throws IOException {
+			block[count++] = (byte) b;
+			total++;
+			if (count == block.length) {
+				encryptBlock(count);
+			}
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			while (length > 0) {
+				int chunk = Math.min(length, block.length - count);
+				System.arraycopy(data, offset, block, count, chunk);
+				count += chunk;
+				total += chunk;
+				offset += chunk;
+				length -= chunk;
+				if (count == block.length) {
+					encryptBlock(count);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (total < block.length) {
+					Arrays.fill(block, count, block.length, (byte) 0);
+					encryptBlock(block.length);
+				} else if (count > 0) {
+					encryptBlock(count);
+				}
+				out.close();
+			} finally {
+				streamTimer.observeSince(start);
+			}
+		}
+
+		private void encryptBlock(int length) throws IOException {
+			try {
+				int written = cipher.doFinal(block, 0, length, encrypted, 0);
+				out.write(encrypted, 0, written);
+			} catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+				throw new IOException(e);
+			}
+			count = 0;
+		}
+	}
+
+	/*
+	 * Passes everything through to out and feeds it to the signature as
+	 * well; close() appends the signature over all of it, then closes out.
+	 */
+	private static class SigningOutputStream extends FilterOutputStream {
+		private final Signature signature;
+		private boolean closed = false;
+
+		SigningOutputStream(OutputStream out, Signature signature) {
+			super(out);
+			this.signature = signature;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				signature.update((byte) b);
+			} catch (SignatureException e) {
+				throw new IOException(e);
+			}
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			try {
+				signature.update(data, offset, length);
+			} catch (SignatureException e) {
+				throw new IOException(e);
+			}
+			out.write(data, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				out.write(signature.sign());
+			} catch (SignatureException e) {
+				throw new IOException(e);
+			}
+			out.close();
+		}
+	}
+
+	private class TimedCipherOutputStream extends CipherOutputStream {
+		private final long start;
+		private boolean closed = false;
+
+		TimedCipherOutputStream(OutputStream out, Cipher cipher, long start) {
+			super(out, cipher);
+			this.start = start;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				streamTimer.observeSince(start);
+			}
+		}
+	}
+
+	private static LatencyHistogram cryptoTimer(String operation) {
+		return MetricsRegistry.getInstance().histogram("firmware_crypto_operation_duration_seconds",
+				"Time spent in each cryptographic operation.", "operation", operation);
 	}
 
 }
\ No newline at end of file
@@ -1,211 +1,879 @@
 package edu.nku.firmware.utility;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-public class DataUtility {
+import edu.nku.firmware.metrics.LatencyHistogram;
+import edu.nku.firmware.metrics.MetricsRegistry;
+
+public class DataUtility implements FirmwareCatalog {
 	/*
-	 * A singleton class to centralize database handle access.
+	 * A singleton class to centralize database handle access. Connections
+	 * are leased from a shared pool rather than opened for every call.
 	 */
 
+	private static final String DB_PATH_PROPERTY = "firmware.db.path";
+	private static final String POOL_SIZE_PROPERTY = "firmware.db.poolSize";
+	private static final int DEFAULT_POOL_SIZE = 4;
+	private static final String VERSION_CACHE_SIZE_PROPERTY = "firmware.cache.versions.size";
+	private static final int DEFAULT_VERSION_CACHE_SIZE = 10000;
+	// SQLite allows at most 999 host parameters per statement
+	private static final int MAX_IN_PARAMETERS = 500;
+
 	private static DataUtility instance = null;
 	private static ServiceLogger logger;
 
-	private Connection conn = null;
+	private ConnectionPool pool;
+	private LruCache<Long, Integer> versionCache;
+	private WriteBehindQueue writeBehind;
+	// held while the cache and the write-behind queue are updated together
+	private final Object versionWriteLock = new Object();
+	private List<FirmwareVersionListener> versionListeners = new CopyOnWriteArrayList<>();
 	private String dbName = "FirmwareSite.db";
 
-	private byte[] cachedPrivateKeyBytes;
-	private byte[] cachedPublicKeyBytes;
+	private final LatencyHistogram queryTimer = dbTimer("queryFirmwareVersion");
+	private final LatencyHistogram bulkQueryTimer = dbTimer("getFirmwareVersions");
+	private final LatencyHistogram publishTimer = dbTimer("publishFirmwareVersions");
+	private final LatencyHistogram tickUpTimer = dbTimer("tickUpFirmwareVersion");
+	private final LatencyHistogram writeTimer = dbTimer("writeFirmwareVersions");
+	private final LatencyHistogram entryTimer = dbTimer("writeDatabaseEntries");
+	private final LatencyHistogram keyTimer = dbTimer("retrieveKey");
+	private final LatencyHistogram signatureTimer = dbTimer("retrieveSignature");
+
+	private volatile byte[] cachedPrivateKeyBytes;
+	private volatile byte[] cachedPublicKeyBytes;
 
 	private DataUtility() {
 		logger = ServiceLogger.getInstance();
-		this.getConnection();
+		Path dbPath = Paths.get(System.getProperty(DB_PATH_PROPERTY, dbName)).toAbsolutePath();
+		initializeDatabaseFile(dbPath);
+		this.pool = new ConnectionPool("jdbc:sqlite:" + dbPath, Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE));
+		this.versionCache = new LruCache<>(Integer.getInteger(VERSION_CACHE_SIZE_PROPERTY, DEFAULT_VERSION_CACHE_SIZE));
+		ensureSchema();
+		this.writeBehind = new WriteBehindQueue(this, logger);
+	}
+
+	private void ensureSchema() {
+		/*
+		 * Batched publishing relies on INSERT OR REPLACE, which needs a unique
+		 * (vendorId, modelId) index. Older databases may hold duplicate rows
+		 * from before the index existed, so only the newest row is kept.
+		 * Vendors hosted alongside the site's own vendor keep their key pairs
+		 * in tblVendorKeys; tblKeys stays the site's key pair. tblDownloads
+		 * is append-only telemetry and has no index to keep up to date.
+		 * tblSignatures holds the publish-time signature of each image with
+		 * the SHA-256 of the bytes it covers; rows from before contentHash
+		 * existed have none, never match, and are re-signed on first use.
+		 * tblSigningKeys holds the ECDSA keys that sign images.
+		 */
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			Statement state = conn.getConnection().createStatement();
+			try {
+				state.executeUpdate("DELETE FROM tblFirmware WHERE rowid NOT IN "
+						+ "(SELECT MAX(rowid) FROM tblFirmware GROUP BY vendorId, modelId)");
+				state.executeUpdate(
+						"CREATE UNIQUE INDEX IF NOT EXISTS idxFirmwareVendorModel ON tblFirmware (vendorId, modelId)");
+				state.executeUpdate("CREATE TABLE IF NOT EXISTS tblVendorKeys "
+						+ "(vendorId INTEGER PRIMARY KEY, publicKey BLOB, privateKey BLOB)");
+				state.executeUpdate("CREATE TABLE IF NOT EXISTS tblDownloads (deviceId TEXT, vendorId INTEGER, "
+						+ "modelId INTEGER, firmwareVersion INTEGER, downloadedAt INTEGER)");
+				state.executeUpdate("CREATE TABLE IF NOT EXISTS tblSignatures (vendorId INTEGER, modelId INTEGER, "
+						+ "firmwareVersion INTEGER, algorithm TEXT, signature BLOB, contentHash BLOB, "
+						+ "PRIMARY KEY (vendorId, modelId, firmwareVersion))");
+				if (!hasColumn(state, "tblSignatures", "contentHash")) {
+					state.executeUpdate("ALTER TABLE tblSignatures ADD COLUMN contentHash BLOB");
+				}
+				state.executeUpdate("CREATE TABLE IF NOT EXISTS tblSigningKeys "
+						+ "(keyId INTEGER PRIMARY KEY, publicKey BLOB, privateKey BLOB)");
+			} finally {
+				state.close();
+			}
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.ensureSchema() - Could not update the database schema.");
+			markBroken(conn);
+			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
+		}
+	}
+
+	private static boolean hasColumn(Statement state, String table, String column) throws SQLException {
+		ResultSet result = state.executeQuery("PRAGMA table_info(" + table + ")");
+		try {
+			while (result.next()) {
+				if (column.equalsIgnoreCase(result.getString("name"))) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			result.close();
+		}
 	}
 
-	public static DataUtility getInstance() {
+	private void initializeDatabaseFile(Path dbPath) {
+		/*
+		 * The bundled database is only a seed. It is copied out of the jar
+		 * once, and every later boot reuses the same file.
+		 */
+		if (Files.exists(dbPath)) {
+			return;
+		}
+		logger.writeLog("DataUtility.initializeDatabaseFile() - Creating " + dbPath + " from bundled database.");
+		try {
+			if (dbPath.getParent() != null) {
+				Files.createDirectories(dbPath.getParent());
+			}
+			InputStream seed = getClass().getResourceAsStream("/" + dbName);
+			if (seed == null) {
+				logger.writeLog("DataUtility.initializeDatabaseFile() - Bundled database not found.");
+				return;
+			}
+			Path tmpPath = Paths.get(dbPath + ".tmp");
+			try {
+				Files.copy(seed, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				seed.close();
+			}
+			Files.move(tmpPath, dbPath, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.writeLog("DataUtility.initializeDatabaseFile() - Could not copy bundled database.");
+			e.printStackTrace();
+		}
+	}
+
+	public static synchronized DataUtility getInstance() {
 		if (instance == null) {
 			instance = new DataUtility();
 		}
 		return instance;
 	}
 
-	private void getConnection() {
+	private PooledConnection getConnection() throws SQLException {
+		return pool.lease();
+	}
+
+	private void closeConnection(PooledConnection conn) {
+		pool.release(conn);
+	}
+
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	public WriteBehindQueue getWriteBehindQueue() {
+		return writeBehind;
+	}
+
+	public LruCache<Long, Integer> getVersionCache() {
+		return versionCache;
+	}
+
+	public void addVersionListener(FirmwareVersionListener listener) {
+		versionListeners.add(listener);
+	}
+
+	public void removeVersionListener(FirmwareVersionListener listener) {
+		versionListeners.remove(listener);
+	}
+
+	private void fireVersionChanged(int vendorId, int modelId, int previousVersion, int newVersion) {
+		if (previousVersion == newVersion) {
+			return;
+		}
+		for (FirmwareVersionListener listener : versionListeners) {
+			try {
+				listener.firmwareVersionChanged(vendorId, modelId, previousVersion, newVersion);
+			} catch (RuntimeException e) {
+				logger.writeLog("DataUtility.fireVersionChanged() - Listener failed.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public int getFirmwareVersion(String vendorId, String modelId) {
+		int pVendorId;
+		int pModelId;
 		try {
-			Class.forName("org.sqlite.JDBC");
-		} catch (ClassNotFoundException e) {
-			logger.writeLog("DataUtility.getConnection() - org.sqlite.JDBC not found");
+			pVendorId = Integer.parseInt(vendorId);
+			pModelId = Integer.parseInt(modelId);
+		} catch (NumberFormatException e) {
+			logger.writeLog("DataUtility.getFirmwareVersion() - Invalid vendor or model id.");
 			e.printStackTrace();
+			return 0;
+		}
+
+		Long key = versionKey(pVendorId, pModelId);
+		Integer cached = versionCache.get(key);
+		if (cached != null) {
+			return cached;
 		}
 
+		Integer firmwareVersion = queryFirmwareVersion(pVendorId, pModelId);
+		if (firmwareVersion == null) {
+			return 0;
+		}
+		// A concurrent write may have landed while we were reading; keep it.
+		return versionCache.putIfAbsent(key, firmwareVersion);
+	}
+
+	/*
+	 * Looks up many models of one vendor at once. Cached versions are served
+	 * directly and the rest are fetched with batched IN queries. Models
+	 * without a row map to 0, as in getFirmwareVersion.
+	 */
+	public Map<Integer, Integer> getFirmwareVersions(int vendorId, Collection<Integer> modelIds) {
+		Map<Integer, Integer> versions = new HashMap<>();
+		List<Integer> misses = new ArrayList<>();
+		for (Integer modelId : modelIds) {
+			if (versions.containsKey(modelId)) {
+				continue;
+			}
+			Integer cached = versionCache.get(versionKey(vendorId, modelId));
+			if (cached == null) {
+				cached = writeBehind.peek(packKey(vendorId, modelId));
+			}
+			if (cached != null) {
+				versions.put(modelId, cached);
+			} else {
+				versions.put(modelId, 0);
+				misses.add(modelId);
+			}
+		}
+		if (misses.isEmpty()) {
+			return versions;
+		}
+
+		long start = System.nanoTime();
+		PooledConnection conn = null;
 		try {
-			this.conn = DriverManager.getConnection("jdbc:sqlite::resource:" + getClass().getResource("/" + dbName));
+			conn = getConnection();
+			for (int from = 0; from < misses.size(); from += MAX_IN_PARAMETERS) {
+				List<Integer> chunk = misses.subList(from, Math.min(misses.size(), from + MAX_IN_PARAMETERS));
+				selectFirmwareVersions(conn, vendorId, chunk, versions);
+			}
 		} catch (SQLException e) {
-			logger.writeLog("DataUtility.getConnection() - Could not get connection.");
+			logger.writeLog("DataUtility.getFirmwareVersions() - Could not query firmware versions.");
+			markBroken(conn);
 			e.printStackTrace();
+			return versions;
+		} finally {
+			closeConnection(conn);
+			bulkQueryTimer.observeSince(start);
+		}
+
+		for (Integer modelId : misses) {
+			versions.put(modelId, versionCache.putIfAbsent(versionKey(vendorId, modelId), versions.get(modelId)));
+		}
+		return versions;
+	}
+
+	private void selectFirmwareVersions(PooledConnection conn, int vendorId, List<Integer> modelIds,
+			Map<Integer, Integer> versions) throws SQLException {
+		StringBuilder query = new StringBuilder(
+				"SELECT modelId, firmwareVersion FROM tblFirmware WHERE vendorId = ? AND modelId IN (");
+		for (int i = 0; i < modelIds.size(); i++) {
+			query.append(i == 0 ? "?" : ", ?");
+		}
+		query.append(")");
+
+		// the placeholder count varies, so these are not kept in the statement cache
+		PreparedStatement state = conn.getConnection().prepareStatement(query.toString());
+		try {
+			state.setInt(1, vendorId);
+			for (int i = 0; i < modelIds.size(); i++) {
+				state.setInt(i + 2, modelIds.get(i));
+			}
+			ResultSet result = state.executeQuery();
+			while (result.next()) {
+				versions.put(result.getInt("modelId"), result.getInt("firmwareVersion"));
+			}
+			result.close();
+		} finally {
+			state.close();
+		}
+	}
+
+	/*
+	 * Returns the cached version, or null when it is not cached. Never
+	 * touches the database.
+	 */
+	public Integer peekFirmwareVersion(String vendorId, String modelId) {
+		try {
+			return versionCache.peek(versionKey(Integer.parseInt(vendorId), Integer.parseInt(modelId)));
+		} catch (NumberFormatException e) {
+			return null;
 		}
 	}
 
-	private void closeConnection() {
+	public boolean hasModel(String vendorId, String modelId) {
+		int pVendorId;
+		int pModelId;
+		try {
+			pVendorId = Integer.parseInt(vendorId);
+			pModelId = Integer.parseInt(modelId);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		// the version cache holds 0 for unknown models too, so only the row can say
+		if (writeBehind.peek(packKey(pVendorId, pModelId)) != null) {
+			return true;
+		}
+		long start = System.nanoTime();
+		PooledConnection conn = null;
 		try {
-			this.conn.close();
+			conn = getConnection();
+			return selectFirmwareVersion(conn, pVendorId, pModelId) >= 0;
 		} catch (SQLException e) {
-			logger.writeLog("DataUtility.closeConnection() - Could not close connection.");
+			logger.writeLog("DataUtility.hasModel() - Could not create prepared statement.");
+			markBroken(conn);
 			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
+			queryTimer.observeSince(start);
 		}
+		return false;
 	}
 
-	public int getFirmwareVersion(String vendorId, String modelId) {
-		getConnection();
-		String query = "SELECT firmwareVersion FROM tblFirmware WHERE vendorId = ? AND modelId = ?";
-		PreparedStatement state;
-		ResultSet result;
-		try {
-			state = this.conn.prepareStatement(query);
-			state.setInt(1, Integer.parseInt(vendorId));
-			state.setInt(2, Integer.parseInt(modelId));
-			result = state.executeQuery();
-			int firmwareVersion = result.getInt("firmwareVersion");
-			logger.writeLog("Data - firmwareVersion:" + firmwareVersion + ", Model:" + modelId);
-			closeConnection();
+	private Integer queryFirmwareVersion(int vendorId, int modelId) {
+		// a version still waiting to be written is newer than the row
+		Integer pendingVersion = writeBehind.peek(packKey(vendorId, modelId));
+		if (pendingVersion != null) {
+			return pendingVersion;
+		}
+		long start = System.nanoTime();
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			int firmwareVersion = Math.max(0, selectFirmwareVersion(conn, vendorId, modelId));
+			if (logger.isDebugEnabled()) {
+				logger.debug("Data - firmwareVersion:" + firmwareVersion + ", Model:" + modelId);
+			}
 			return firmwareVersion;
-		} catch (Exception e) {
-			logger.writeLog("DataUtility.getFirmwareVersion() - Could not create prepared statement.");
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.queryFirmwareVersion() - Could not create prepared statement.");
+			markBroken(conn);
 			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
+			queryTimer.observeSince(start);
 		}
-		closeConnection();
-		return 0;
+		return null;
+	}
+
+	private int selectFirmwareVersion(PooledConnection conn, int vendorId, int modelId) throws SQLException {
+		// -1 when the model has no row yet
+		String query = "SELECT firmwareVersion FROM tblFirmware WHERE vendorId = ? AND modelId = ?";
+		PreparedStatement state = conn.prepareStatement(query);
+		state.setInt(1, vendorId);
+		state.setInt(2, modelId);
+		ResultSet result = state.executeQuery();
+		try {
+			return result.next() ? result.getInt("firmwareVersion") : -1;
+		} finally {
+			result.close();
+		}
+	}
+
+	private Map<Integer, Integer> selectVendorVersions(PooledConnection conn, int vendorId) throws SQLException {
+		String query = "SELECT modelId, firmwareVersion FROM tblFirmware WHERE vendorId = ?";
+		PreparedStatement state = conn.prepareStatement(query);
+		state.setInt(1, vendorId);
+		ResultSet result = state.executeQuery();
+		Map<Integer, Integer> versions = new HashMap<>();
+		try {
+			while (result.next()) {
+				versions.put(result.getInt("modelId"), result.getInt("firmwareVersion"));
+			}
+		} finally {
+			result.close();
+		}
+		return versions;
 	}
 
 	public void updateFirmwareVersions(int vendorId) {
-		getConnection();
 		Random rand = new Random();
+		Map<Integer, Integer> modelVersions = new LinkedHashMap<>();
 		for (int modelId = 0; modelId < 10; modelId++) {
-			int firmwareVersion = rand.nextInt(100);
-
-			String query = "UPDATE tblFirmware SET firmwareVersion = ? WHERE vendorId = ? AND modelId = ?;";
-			PreparedStatement state;
-			try {
-				state = this.conn.prepareStatement(query);
-				state.setInt(1, firmwareVersion);
-				state.setInt(2, vendorId);
-				state.setInt(3, modelId);
+			modelVersions.put(modelId, rand.nextInt(100));
+		}
+		publishFirmwareVersions(vendorId, modelVersions);
+	}
 
-				int rows = state.executeUpdate();
+	public boolean publishFirmwareVersions(int vendorId, Map<Integer, Integer> modelVersions) {
+		/*
+		 * Publishes a whole set of (model, version) pairs for one vendor in a
+		 * single transaction, so a large catalog costs one commit. Queued
+		 * writes are flushed first and bumps wait meanwhile, so a stale
+		 * queued version can never land on top of a published one.
+		 */
+		if (modelVersions.isEmpty()) {
+			return true;
+		}
+		Map<Integer, Integer> previousVersions = new HashMap<>();
+		synchronized (versionWriteLock) {
+			synchronized (writeBehind) {
+				writeBehind.flush();
+				if (!commitFirmwareVersions(vendorId, modelVersions, previousVersions)) {
+					return false;
+				}
+			}
+			for (Map.Entry<Integer, Integer> entry : modelVersions.entrySet()) {
+				versionCache.put(versionKey(vendorId, entry.getKey()), entry.getValue());
+			}
+		}
+		if (!versionListeners.isEmpty()) {
+			for (Map.Entry<Integer, Integer> entry : modelVersions.entrySet()) {
+				Integer previous = previousVersions.get(entry.getKey());
+				fireVersionChanged(vendorId, entry.getKey(), previous == null ? -1 : previous, entry.getValue());
+			}
+		}
+		return true;
+	}
 
-				if (rows < 1) {
-					query = "INSERT INTO tblFirmware (vendorId, modelId, firmwareVersion) SELECT ?, ?, ? WHERE (Select Changes() = 0);";
-					state = this.conn.prepareStatement(query);
+	private boolean commitFirmwareVersions(int vendorId, Map<Integer, Integer> modelVersions,
+			Map<Integer, Integer> previousVersions) {
+		String query = "INSERT OR REPLACE INTO tblFirmware (vendorId, modelId, firmwareVersion) VALUES (?, ?, ?)";
+		long start = System.nanoTime();
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			conn.beginImmediate();
+			try {
+				if (!versionListeners.isEmpty()) {
+					previousVersions.putAll(selectVendorVersions(conn, vendorId));
+				}
+				PreparedStatement state = conn.prepareStatement(query);
+				for (Map.Entry<Integer, Integer> entry : modelVersions.entrySet()) {
 					state.setInt(1, vendorId);
-					state.setInt(2, modelId);
-					state.setInt(3, firmwareVersion);
-					state.executeUpdate();
+					state.setInt(2, entry.getKey());
+					state.setInt(3, entry.getValue());
+					state.addBatch();
 				}
+				state.executeBatch();
+				conn.commit();
 			} catch (SQLException e) {
-				logger.writeLog("DataUtility.updateFirmwareVersions() - Could not create prepared statement.");
-				e.printStackTrace();
+				conn.rollback();
+				throw e;
+			}
+			return true;
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.publishFirmwareVersions() - Could not publish firmware versions.");
+			markBroken(conn);
+			e.printStackTrace();
+			return false;
+		} finally {
+			closeConnection(conn);
+			publishTimer.observeSince(start);
+		}
+	}
+
+	/*
+	 * Writes versions keyed by packKey in one transaction, for the
+	 * write-behind queue. Neither the cache nor listeners are involved; the
+	 * caller already updated both.
+	 */
+	boolean writeFirmwareVersions(Map<Long, Integer> packedVersions) {
+		String query = "INSERT OR REPLACE INTO tblFirmware (vendorId, modelId, firmwareVersion) VALUES (?, ?, ?)";
+		long start = System.nanoTime();
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			conn.beginImmediate();
+			try {
+				PreparedStatement state = conn.prepareStatement(query);
+				for (Map.Entry<Long, Integer> entry : packedVersions.entrySet()) {
+					long key = entry.getKey();
+					state.setInt(1, (int) (key >> 32));
+					state.setInt(2, (int) key);
+					state.setInt(3, entry.getValue());
+					state.addBatch();
+				}
+				state.executeBatch();
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
 			}
+			return true;
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.writeFirmwareVersions() - Could not write firmware versions.");
+			markBroken(conn);
+			e.printStackTrace();
+			return false;
+		} finally {
+			closeConnection(conn);
+			writeTimer.observeSince(start);
 		}
-		closeConnection();
 	}
 
 	public void tickUpFirmwareVersion(String pVendorId, String pModelId, int firmwareVersion) {
-		getConnection();
-		String query = "UPDATE tblFirmware SET firmwareVersion = ? WHERE vendorId = ? AND modelId = ?";
-		PreparedStatement state;
-		try {
-			state = this.conn.prepareStatement(query);
-			state.setInt(1, firmwareVersion);
-			state.setInt(2, Integer.parseInt(pVendorId));
-			state.setInt(3, Integer.parseInt(pModelId));
-			state.executeUpdate();
+		/*
+		 * Like the UPDATE this replaced, only models that already have a row
+		 * change. Finding that out may take a read, but the write itself is
+		 * left to the write-behind queue so no request waits for a commit.
+		 */
+		int vendorId = Integer.parseInt(pVendorId);
+		int modelId = Integer.parseInt(pModelId);
+		long key = packKey(vendorId, modelId);
+		long start = System.nanoTime();
+		int previousVersion;
+		try {
+			previousVersion = storedFirmwareVersion(vendorId, modelId);
+			if (previousVersion < 0) {
+				return;
+			}
+			synchronized (versionWriteLock) {
+				if (!writeBehind.put(key, firmwareVersion)) {
+					// the database is down and the queue is full; never serve what was not kept
+					return;
+				}
+				versionCache.put(key, firmwareVersion);
+			}
+		} finally {
+			tickUpTimer.observeSince(start);
+		}
+		if (!versionListeners.isEmpty()) {
+			fireVersionChanged(vendorId, modelId, previousVersion, firmwareVersion);
+		}
+	}
+
+	/*
+	 * The current version of a model that has a row, or -1 if it has none.
+	 * Cached versions prove the row exists unless they are 0, which is also
+	 * what a missing row reads as.
+	 */
+	private int storedFirmwareVersion(int vendorId, int modelId) {
+		Integer known = writeBehind.peek(packKey(vendorId, modelId));
+		if (known == null) {
+			known = versionCache.peek(versionKey(vendorId, modelId));
+		}
+		if (known != null && known != 0) {
+			return known;
+		}
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			return selectFirmwareVersion(conn, vendorId, modelId);
 		} catch (SQLException e) {
 			logger.writeLog("DataUtility.tickUpFirmwareVersion() - Could not create prepared statement.");
+			markBroken(conn);
 			e.printStackTrace();
+			return -1;
+		} finally {
+			closeConnection(conn);
 		}
-		closeConnection();
 	}
 
+	/*
+	 * The original single-entry hook, kept for existing callers. The entry is
+	 * opaque, so it is stored as the device id of one download with vendor,
+	 * model and version 0, through the same path as batched events. New code
+	 * should record downloads with DownloadTelemetry instead.
+	 */
+	@Deprecated
 	public void writeDatabaseEntry(String data) {
 		String log = "writeDatabaseEntry:" + data;
 		logger.writeLog(log);
-		// TODO: Fill in the rest of this class.
+		writeDatabaseEntries(Collections.singletonList(new DownloadEvent(data, 0, 0, 0, System.currentTimeMillis())));
+	}
+
+	/*
+	 * Appends download events to tblDownloads in one transaction. Called
+	 * from DownloadTelemetry's writer thread, never from a request.
+	 */
+	public boolean writeDatabaseEntries(List<DownloadEvent> events) {
+		String query = "INSERT INTO tblDownloads (deviceId, vendorId, modelId, firmwareVersion, downloadedAt) "
+				+ "VALUES (?, ?, ?, ?, ?)";
+		long start = System.nanoTime();
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			conn.beginImmediate();
+			try {
+				PreparedStatement state = conn.prepareStatement(query);
+				for (DownloadEvent event : events) {
+					state.setString(1, event.getDeviceId());
+					state.setInt(2, event.getVendorId());
+					state.setInt(3, event.getModelId());
+					state.setInt(4, event.getFirmwareVersion());
+					state.setLong(5, event.getDownloadedAt());
+					state.addBatch();
+				}
+				state.executeBatch();
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			}
+			return true;
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.writeDatabaseEntries() - Could not write " + events.size()
+					+ " download events.");
+			markBroken(conn);
+			e.printStackTrace();
+			return false;
+		} finally {
+			closeConnection(conn);
+			entryTimer.observeSince(start);
+		}
 	}
 
 	public void storeKeyPair(byte[] publicString, byte[] privateString) {
-		getConnection();
 		String query = "INSERT INTO tblKeys (publicKey, privateKey) VALUES (?, ?)";
-		PreparedStatement state;
+		PooledConnection conn = null;
 		try {
-			state = this.conn.prepareStatement(query);
+			conn = getConnection();
+			PreparedStatement state = conn.prepareStatement(query);
 			state.setBytes(1, publicString);
 			state.setBytes(2, privateString);
 			state.executeUpdate();
 		} catch (SQLException e) {
 			logger.writeLog("DataUtility.storeKeyPair() - Could not create prepared statement.");
+			markBroken(conn);
+			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
+		}
+	}
+
+	public void storeVendorKeyPair(int vendorId, byte[] publicString, byte[] privateString) {
+		String query = "INSERT OR REPLACE INTO tblVendorKeys (vendorId, publicKey, privateKey) VALUES (?, ?, ?)";
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			PreparedStatement state = conn.prepareStatement(query);
+			state.setInt(1, vendorId);
+			state.setBytes(2, publicString);
+			state.setBytes(3, privateString);
+			state.executeUpdate();
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.storeVendorKeyPair() - Could not create prepared statement.");
+			markBroken(conn);
 			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
 		}
-		closeConnection();
+	}
+
+	public byte[] retrieveVendorPublicKey(int vendorId) {
+		return retrieveKeyColumn("SELECT publicKey FROM tblVendorKeys WHERE vendorId = ?", "publicKey", vendorId);
+	}
+
+	public byte[] retrieveVendorPrivateKey(int vendorId) {
+		return retrieveKeyColumn("SELECT privateKey FROM tblVendorKeys WHERE vendorId = ?", "privateKey", vendorId);
 	}
 
 	public byte[] retrievePublicKey() {
-		logger.writeLog("DataUtility.retrievePublicKey() - Beginning retrieval");
-		getConnection();
-		if (cachedPrivateKeyBytes == null || cachedPublicKeyBytes == null) {
-			String query = "SELECT publicKey FROM tblKeys";
-			PreparedStatement state;
-			ResultSet result;
-			try {
-				state = this.conn.prepareStatement(query);
-				result = state.executeQuery();
-				byte[] publicBytes = result.getBytes("publicKey");
-				cachedPublicKeyBytes = publicBytes;
-				logger.writeLog("Data - pub:" + publicBytes);
-				closeConnection();
-				return publicBytes;
-			} catch (SQLException e) {
-				logger.writeLog("DataUtility.retrievePublicKey() - Could not create prepared statement.");
-				e.printStackTrace();
-			}
-		} else {
-			logger.writeLog("Data - already had cached keys");
-			closeConnection();
+		logger.debug("DataUtility.retrievePublicKey() - Beginning retrieval");
+		if (cachedPrivateKeyBytes != null && cachedPublicKeyBytes != null) {
+			logger.debug("Data - already had cached keys");
 			return cachedPublicKeyBytes;
 		}
-		closeConnection();
-		return null;
+		byte[] publicBytes = retrieveKeyColumn("SELECT publicKey FROM tblKeys", "publicKey", null);
+		if (publicBytes != null) {
+			cachedPublicKeyBytes = publicBytes;
+			if (logger.isDebugEnabled()) {
+				logger.debug("Data - pub:" + publicBytes);
+			}
+		}
+		return publicBytes;
 	}
 
 	public byte[] retrievePrivateKey() {
-		logger.writeLog("DataUtility.retrievePrivateKey() - Beginning retrieval");
-		getConnection();
-		if (cachedPrivateKeyBytes == null || cachedPublicKeyBytes == null) {
-			String query = "SELECT privateKey FROM tblKeys";
-			PreparedStatement state;
-			ResultSet result;
-			try {
-				state = this.conn.prepareStatement(query);
-				result = state.executeQuery();
-				byte[] privateBytes = result.getBytes("privateKey");
-				cachedPrivateKeyBytes = privateBytes;
-				logger.writeLog("Data - pub:" + privateBytes);
-				closeConnection();
-				return privateBytes;
-			} catch (SQLException e) {
-				logger.writeLog("DataUtility.retrievePrivateKey() - Could not create prepared statement.");
-				e.printStackTrace();
-			}
-		} else {
-			logger.writeLog("Data - already had cached keys");
-			closeConnection();
+		logger.debug("DataUtility.retrievePrivateKey() - Beginning retrieval");
+		if (cachedPrivateKeyBytes != null && cachedPublicKeyBytes != null) {
+			logger.debug("Data - already had cached keys");
 			return cachedPrivateKeyBytes;
 		}
-		closeConnection();
+		byte[] privateBytes = retrieveKeyColumn("SELECT privateKey FROM tblKeys", "privateKey", null);
+		if (privateBytes != null) {
+			cachedPrivateKeyBytes = privateBytes;
+			if (logger.isDebugEnabled()) {
+				logger.debug("Data - pub:" + privateBytes);
+			}
+		}
+		return privateBytes;
+	}
+
+	public void storeSigningKeyPair(int keyId, byte[] publicString, byte[] privateString) {
+		String query = "INSERT OR REPLACE INTO tblSigningKeys (keyId, publicKey, privateKey) VALUES (?, ?, ?)";
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			PreparedStatement state = conn.prepareStatement(query);
+			state.setInt(1, keyId);
+			state.setBytes(2, publicString);
+			state.setBytes(3, privateString);
+			state.executeUpdate();
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.storeSigningKeyPair() - Could not create prepared statement.");
+			markBroken(conn);
+			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
+		}
+	}
+
+	public byte[] retrieveSigningPublicKey(int keyId) {
+		return retrieveKeyColumn("SELECT publicKey FROM tblSigningKeys WHERE keyId = ?", "publicKey", keyId);
+	}
+
+	public byte[] retrieveSigningPrivateKey(int keyId) {
+		return retrieveKeyColumn("SELECT privateKey FROM tblSigningKeys WHERE keyId = ?", "privateKey", keyId);
+	}
+
+	public void storeSignature(int vendorId, int modelId, int firmwareVersion, String algorithm, byte[] contentHash,
+			byte[] signature) {
+		String query = "INSERT OR REPLACE INTO tblSignatures "
+				+ "(vendorId, modelId, firmwareVersion, algorithm, contentHash, signature) VALUES (?, ?, ?, ?, ?, ?)";
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			PreparedStatement state = conn.prepareStatement(query);
+			state.setInt(1, vendorId);
+			state.setInt(2, modelId);
+			state.setInt(3, firmwareVersion);
+			state.setString(4, algorithm);
+			state.setBytes(5, contentHash);
+			state.setBytes(6, signature);
+			state.executeUpdate();
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.storeSignature() - Could not create prepared statement.");
+			markBroken(conn);
+			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
+		}
+	}
+
+	public byte[] retrieveSignature(int vendorId, int modelId, int firmwareVersion, String algorithm,
+			byte[] contentHash) {
+		String query = "SELECT signature FROM tblSignatures WHERE vendorId = ? AND modelId = ? "
+				+ "AND firmwareVersion = ? AND algorithm = ? AND contentHash = ?";
+		long start = System.nanoTime();
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			PreparedStatement state = conn.prepareStatement(query);
+			state.setInt(1, vendorId);
+			state.setInt(2, modelId);
+			state.setInt(3, firmwareVersion);
+			state.setString(4, algorithm);
+			state.setBytes(5, contentHash);
+			ResultSet result = state.executeQuery();
+			byte[] signature = result.next() ? result.getBytes("signature") : null;
+			result.close();
+			return signature;
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.retrieveSignature() - Could not create prepared statement.");
+			markBroken(conn);
+			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
+			signatureTimer.observeSince(start);
+		}
 		return null;
 	}
+
+	private byte[] retrieveKeyColumn(String query, String column, Integer vendorId) {
+		long start = System.nanoTime();
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			PreparedStatement state = conn.prepareStatement(query);
+			if (vendorId != null) {
+				state.setInt(1, vendorId);
+			}
+			ResultSet result = state.executeQuery();
+			byte[] keyBytes = result.next() ? result.getBytes(column) : null;
+			result.close();
+			return keyBytes;
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.retrieveKeyColumn() - Could not create prepared statement.");
+			markBroken(conn);
+			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
+			keyTimer.observeSince(start);
+		}
+		return null;
+	}
+
+	/*
+	 * Reads every (vendor, model) version, keyed by packKey, for
+	 * catalogs that keep the whole table in memory.
+	 */
+	public LongIntHashMap loadFirmwareVersions() {
+		String query = "SELECT vendorId, modelId, firmwareVersion FROM tblFirmware";
+		LongIntHashMap versions = new LongIntHashMap();
+		PooledConnection conn = null;
+		try {
+			conn = getConnection();
+			PreparedStatement state = conn.prepareStatement(query);
+			ResultSet result = state.executeQuery();
+			try {
+				while (result.next()) {
+					versions.put(packKey(result.getInt("vendorId"), result.getInt("modelId")),
+							result.getInt("firmwareVersion"), -1);
+				}
+			} finally {
+				result.close();
+			}
+		} catch (SQLException e) {
+			logger.writeLog("DataUtility.loadFirmwareVersions() - Could not load firmware versions.");
+			markBroken(conn);
+			e.printStackTrace();
+		} finally {
+			closeConnection(conn);
+		}
+		return versions;
+	}
+
+	public void flush() {
+		writeBehind.flush();
+	}
+
+	public void close() {
+		writeBehind.close();
+		pool.close();
+	}
+
+	private static Long versionKey(int vendorId, int modelId) {
+		return packKey(vendorId, modelId);
+	}
+
+	static long packKey(int vendorId, int modelId) {
+		return ((long) vendorId << 32) | (modelId & 0xffffffffL);
+	}
+
+	private static LatencyHistogram dbTimer(String operation) {
+		return MetricsRegistry.getInstance().histogram("firmware_db_operation_duration_seconds",
+				"Time spent in each database operation.", "operation", operation);
+	}
+
+	private void markBroken(PooledConnection conn) {
+		if (conn != null) {
+			conn.markBroken();
+		}
+	}
 }
@@ -0,0 +1,226 @@
+package edu.nku.firmware.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class DeltaEncoder {
+	/*
+	 * Binary deltas between two firmware images. A delta rebuilds the target
+	 * image from the base image the device already has:
+	 *
+	 * ["FWD1"][base length (4)][target length (4)] then operations, each
+	 * [COPY (1)][base offset (4)][length (4)] or
+	 * [INSERT (1)][length (4)][bytes].
+	 *
+	 * The encoder indexes the base in BLOCK_SIZE blocks and slides a rolling
+	 * hash over the target. Every hit is checked byte for byte and then
+	 * extended in both directions, so unchanged regions become single COPY
+	 * operations wherever they moved to.
+	 */
+
+	public static final byte[] MAGIC = { 'F', 'W', 'D', '1' };
+
+	private static final byte COPY = 1;
+	private static final byte INSERT = 2;
+	private static final int BLOCK_SIZE = 16;
+	private static final int HASH_MULTIPLIER = 31;
+	// HASH_MULTIPLIER^(BLOCK_SIZE - 1), to drop the byte leaving the window
+	private static final int HASH_LEAVING;
+
+	static {
+		int power = 1;
+		for (int i = 1; i < BLOCK_SIZE; i++) {
+			power *= HASH_MULTIPLIER;
+		}
+		HASH_LEAVING = power;
+	}
+
+	private DeltaEncoder() {
+	}
+
+	public static byte[] encode(byte[] base, byte[] target) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, target.length / 8));
+		DataOutputStream out = new DataOutputStream(buffer);
+		try {
+			out.write(MAGIC);
+			out.writeInt(base.length);
+			out.writeInt(target.length);
+
+			int[] index = indexBlocks(base);
+			int mask = index.length - 1;
+			int pending = 0;
+			int position = 0;
+			int hash = (target.length >= BLOCK_SIZE) ? hash(target, 0) : 0;
+			while (position + BLOCK_SIZE <= target.length) {
+				int candidate = index[mix(hash) & mask] - 1;
+				if (candidate >= 0 && regionMatches(base, candidate, target, position, BLOCK_SIZE)) {
+					// grow the match backwards into bytes not yet written, then forwards
+					int start = position;
+					int baseStart = candidate;
+					while (start > pending && baseStart > 0 && target[start - 1] == base[baseStart - 1]) {
+						start--;
+						baseStart--;
+					}
+					int end = position + BLOCK_SIZE;
+					int baseEnd = candidate + BLOCK_SIZE;
+					while (end < target.length && baseEnd < base.length && target[end] == base[baseEnd]) {
+						end++;
+						baseEnd++;
+					}
+					writeInsert(out, target, pending, start);
+					out.writeByte(COPY);
+					out.writeInt(baseStart);
+					out.writeInt(end - start);
+					pending = end;
+					position = end;
+					if (position + BLOCK_SIZE <= target.length) {
+						hash = hash(target, position);
+					}
+					continue;
+				}
+				if (position + BLOCK_SIZE < target.length) {
+					hash = (hash - target[position] * HASH_LEAVING) * HASH_MULTIPLIER + target[position + BLOCK_SIZE];
+				}
+				position++;
+			}
+			writeInsert(out, target, pending, target.length);
+			out.flush();
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return buffer.toByteArray();
+	}
+
+	/*
+	 * Rebuilds the target image, as a device would. Throws
+	 * IllegalArgumentException when the delta is malformed or was made
+	 * against a base of a different length. Every operation is checked
+	 * before the target is allocated, so a corrupt header cannot ask for
+	 * more memory than the delta actually describes.
+	 */
+	public static byte[] apply(byte[] base, byte[] delta) {
+		if (delta.length < MAGIC.length + 8) {
+			throw new IllegalArgumentException("Delta is too short.");
+		}
+		ByteBuffer in = ByteBuffer.wrap(delta);
+		byte[] magic = new byte[MAGIC.length];
+		in.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IllegalArgumentException("Not a firmware delta.");
+		}
+		if (in.getInt() != base.length) {
+			throw new IllegalArgumentException("Delta was made against a different base image.");
+		}
+		int targetLength = in.getInt();
+		int operations = in.position();
+		try {
+			if (targetLength < 0 || validate(in, base.length, targetLength) != targetLength) {
+				throw new IllegalArgumentException("Delta is incomplete.");
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Delta is corrupt.", e);
+		}
+
+		byte[] target = new byte[targetLength];
+		in.position(operations);
+		int position = 0;
+		while (in.hasRemaining()) {
+			byte operation = in.get();
+			int length;
+			if (operation == COPY) {
+				int offset = in.getInt();
+				length = in.getInt();
+				System.arraycopy(base, offset, target, position, length);
+			} else {
+				length = in.getInt();
+				in.get(target, position, length);
+			}
+			position += length;
+		}
+		return target;
+	}
+
+	/*
+	 * Walks the operations and returns the length they rebuild, throwing
+	 * if any of them reaches outside the base, the delta or the target.
+	 */
+	private static long validate(ByteBuffer in, int baseLength, int targetLength) {
+		long position = 0;
+		while (in.hasRemaining()) {
+			byte operation = in.get();
+			int length;
+			if (operation == COPY) {
+				int offset = in.getInt();
+				length = in.getInt();
+				if (offset < 0 || length < 0 || offset > baseLength - length) {
+					throw new IllegalArgumentException("Delta copies outside the base image.");
+				}
+			} else if (operation == INSERT) {
+				length = in.getInt();
+				if (length < 0 || length > in.remaining()) {
+					throw new IllegalArgumentException("Delta is corrupt.");
+				}
+				in.position(in.position() + length);
+			} else {
+				throw new IllegalArgumentException("Unknown delta operation " + operation);
+			}
+			position += length;
+			if (position > targetLength) {
+				throw new IllegalArgumentException("Delta is longer than its target.");
+			}
+		}
+		return position;
+	}
+
+	private static int[] indexBlocks(byte[] base) {
+		// offsets + 1, so 0 marks an empty slot; the first block with a hash keeps the slot, which
+		// lets runs of repeated blocks extend into one long COPY
+		int blocks = base.length / BLOCK_SIZE;
+		int[] index = new int[Integer.highestOneBit(Math.max(1, blocks) * 2 - 1) << 1];
+		int mask = index.length - 1;
+		for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+			int slot = mix(hash(base, offset)) & mask;
+			if (index[slot] == 0) {
+				index[slot] = offset + 1;
+			}
+		}
+		return index;
+	}
+
+	private static int hash(byte[] data, int offset) {
+		int hash = 0;
+		for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+			hash = hash * HASH_MULTIPLIER + data[i];
+		}
+		return hash;
+	}
+
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+
+	private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aOffset + i] != b[bOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeInsert(DataOutputStream out, byte[] target, int from, int to) throws IOException {
+		if (to > from) {
+			out.writeByte(INSERT);
+			out.writeInt(to - from);
+			out.write(target, from, to - from);
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package edu.nku.firmware.utility;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class DeltaPackageBuilder implements FirmwareVersionListener {
+	/*
+	 * Builds a delta from the previous version to the new one whenever a
+	 * model gets a new version, on a background thread, and signs it with
+	 * the vendor's keys. When a firmware store is configured, deltas are
+	 * written next to the full images as
+	 * <store>/<vendor>/<model>/<base>-<version>.delta, with the signature in
+	 * a .delta.<algorithm>.sig file beside it, so a restart does not lose
+	 * them and a change of signing algorithm rebuilds them, and only
+	 * the path is cached; otherwise the delta itself is cached. Serving
+	 * never builds or signs a delta: getDelta() returns null and the device
+	 * gets the full image. A delta is only kept if it rebuilds the new
+	 * image exactly and its response, signature included, is smaller than
+	 * the full image's.
+	 */
+
+	private static final String MAX_BYTES_PROPERTY = "firmware.cache.deltas.maxBytes";
+	private static final long DEFAULT_MAX_BYTES = 64L << 20;
+	private static final int MAX_ENTRIES = 10000;
+	// ,"baseVersion":<up to 11 characters>,"signature":"" around the Base64 signature
+	private static final int DELTA_FIELDS_LENGTH = 41;
+
+	private final PackageBuilder packageBuilder;
+	private final ServiceLogger logger;
+	private final ConcurrentMap<Integer, CryptoUtility> vendorCrypto = new ConcurrentHashMap<>();
+	private final LruCache<String, FirmwarePackage> deltas;
+	private final ConcurrentMap<String, Boolean> queued = new ConcurrentHashMap<>();
+	private final ExecutorService builder;
+
+	public DeltaPackageBuilder(PackageBuilder packageBuilder, ServiceLogger logger) {
+		this.packageBuilder = packageBuilder;
+		this.logger = logger;
+		this.deltas = new LruCache<>(MAX_ENTRIES, Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+				new LruCache.Weigher<FirmwarePackage>() {
+					@Override
+					public long weigh(FirmwarePackage value) {
+						return value.getHeapSize();
+					}
+				});
+		this.builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "firmware-delta-builder");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void registerVendor(int vendorId, CryptoUtility crypto) {
+		vendorCrypto.put(vendorId, crypto);
+	}
+
+	public LruCache<String, FirmwarePackage> getDeltaCache() {
+		return deltas;
+	}
+
+	/*
+	 * The signed delta from baseVersion to version, or null if none was built.
+	 */
+	public FirmwarePackage getDelta(int vendorId, int modelId, int baseVersion, int version) {
+		String key = key(vendorId, modelId, baseVersion, version);
+		FirmwarePackage delta = deltas.get(key);
+		if (delta != null) {
+			return delta;
+		}
+		Path file = deltaFile(vendorId, modelId, baseVersion, version);
+		if (file == null || !Files.isRegularFile(file)) {
+			return null;
+		}
+		CryptoUtility crypto = vendorCrypto.get(vendorId);
+		if (crypto == null) {
+			return null;
+		}
+		Path signatureFile = signatureFile(file, crypto.getSignatureAlgorithm());
+		if (!Files.isRegularFile(signatureFile)) {
+			// left by an older build or signed another way; rebuilding it writes the signature too
+			firmwareVersionChanged(vendorId, modelId, baseVersion, version);
+			return null;
+		}
+		try {
+			delta = new FirmwarePackage(vendorId, modelId, version, baseVersion, file, PackageBuilder.imageSize(file),
+					Files.getLastModifiedTime(file).toMillis());
+			delta.setSignature(Files.readAllBytes(signatureFile));
+		} catch (IOException e) {
+			logger.writeLog("DeltaPackageBuilder.getDelta() - Could not read " + file);
+			e.printStackTrace();
+			return null;
+		}
+		return deltas.putIfAbsent(key, delta);
+	}
+
+	@Override
+	public void firmwareVersionChanged(final int vendorId, final int modelId, final int previousVersion,
+			final int newVersion) {
+		if (previousVersion < 0 || !vendorCrypto.containsKey(vendorId)) {
+			return;
+		}
+		final String key = key(vendorId, modelId, previousVersion, newVersion);
+		if (queued.putIfAbsent(key, Boolean.TRUE) != null) {
+			return;
+		}
+		builder.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					buildDelta(vendorId, modelId, previousVersion, newVersion);
+				} catch (IOException | RuntimeException e) {
+					logger.writeLog("DeltaPackageBuilder.buildDelta() - Could not build delta for model " + modelId);
+					e.printStackTrace();
+				} finally {
+					queued.remove(key);
+				}
+			}
+		});
+	}
+
+	public FirmwarePackage buildDelta(int vendorId, int modelId, int baseVersion, int version) throws IOException {
+		String key = key(vendorId, modelId, baseVersion, version);
+		FirmwarePackage existing = deltas.peek(key);
+		if (existing != null) {
+			return existing;
+		}
+		FirmwarePackage base = packageBuilder.getPackage(String.valueOf(vendorId), String.valueOf(modelId),
+				baseVersion);
+		FirmwarePackage target = packageBuilder.getPackage(String.valueOf(vendorId), String.valueOf(modelId),
+				version);
+		// both images are only on the heap while this delta is built
+		byte[] baseContent = base.readContent();
+		byte[] targetContent = target.readContent();
+		byte[] content = DeltaEncoder.encode(baseContent, targetContent);
+		if (base64Length(content.length) >= base64Length(targetContent.length)) {
+			logger.debug("DeltaPackageBuilder - No smaller delta for model " + modelId + " " + baseVersion + " to "
+					+ version + ".");
+			return null;
+		}
+		// a device applies what we sign, so never sign a delta that does not rebuild the image
+		if (!Arrays.equals(DeltaEncoder.apply(baseContent, content), targetContent)) {
+			logger.writeLog("DeltaPackageBuilder.buildDelta() - Delta for model " + modelId + " " + baseVersion
+					+ " to " + version + " does not rebuild the image.");
+			return null;
+		}
+
+		CryptoUtility crypto = vendorCrypto.get(vendorId);
+		if (crypto == null) {
+			logger.writeLog("DeltaPackageBuilder.buildDelta() - No keys registered for vendor " + vendorId);
+			return null;
+		}
+		byte[] signature = sign(crypto, modelId, content);
+		if (signature == null) {
+			return null;
+		}
+		if (base64Length(content.length) + base64Length(signature.length)
+				+ DELTA_FIELDS_LENGTH >= base64Length(targetContent.length)) {
+			logger.debug("DeltaPackageBuilder - Signed delta response for model " + modelId + " " + baseVersion
+					+ " to " + version + " is no smaller than the full image.");
+			return null;
+		}
+		Path file = deltaFile(vendorId, modelId, baseVersion, version);
+		FirmwarePackage delta;
+		if (file != null) {
+			// the signature goes first, so a delta on disk always has one
+			Files.createDirectories(file.getParent());
+			writeAtomically(signatureFile(file, crypto.getSignatureAlgorithm()), signature);
+			writeAtomically(file, content);
+			delta = new FirmwarePackage(vendorId, modelId, version, baseVersion, file, content.length,
+					Files.getLastModifiedTime(file).toMillis());
+		} else {
+			delta = new FirmwarePackage(vendorId, modelId, version, baseVersion, content);
+		}
+		delta.setSignature(signature);
+		deltas.put(key, delta);
+		return delta;
+	}
+
+	public void shutdown() {
+		builder.shutdownNow();
+	}
+
+	private byte[] sign(CryptoUtility crypto, int modelId, byte[] content) {
+		try {
+			return crypto.sign(content);
+		} catch (InvalidKeyException | SignatureException e) {
+			logger.writeLog("DeltaPackageBuilder.sign() - Could not sign delta for model " + modelId);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static long base64Length(int length) {
+		return 4L * ((length + 2) / 3);
+	}
+
+	private static void writeAtomically(Path file, byte[] content) throws IOException {
+		// written under a temporary name so a reader never sees half a file
+		Path partial = file.resolveSibling(file.getFileName() + ".partial");
+		Files.write(partial, content);
+		Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Path signatureFile(Path deltaFile, String algorithm) {
+		return deltaFile.resolveSibling(deltaFile.getFileName() + "." + algorithm + ".sig");
+	}
+
+	private Path deltaFile(int vendorId, int modelId, int baseVersion, int version) {
+		Path store = packageBuilder.getStorePath();
+		if (store == null) {
+			return null;
+		}
+		return store.resolve(String.valueOf(vendorId)).resolve(String.valueOf(modelId))
+				.resolve(baseVersion + "-" + version + ".delta");
+	}
+
+	private static String key(int vendorId, int modelId, int baseVersion, int version) {
+		return vendorId + ":" + modelId + ":" + baseVersion + ":" + version;
+	}
+}
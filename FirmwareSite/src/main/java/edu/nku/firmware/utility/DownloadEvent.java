@@ -0,0 +1,40 @@
+package edu.nku.firmware.utility;
+
+public final class DownloadEvent {
+	/*
+	 * One firmware download, as queued by DownloadTelemetry. Everything but
+	 * the device id is a primitive, so an event is a single small object.
+	 */
+
+	private final String deviceId;
+	private final long modelKey;
+	private final int firmwareVersion;
+	private final long downloadedAt;
+
+	public DownloadEvent(String deviceId, int vendorId, int modelId, int firmwareVersion, long downloadedAt) {
+		this.deviceId = deviceId;
+		this.modelKey = DataUtility.packKey(vendorId, modelId);
+		this.firmwareVersion = firmwareVersion;
+		this.downloadedAt = downloadedAt;
+	}
+
+	public String getDeviceId() {
+		return deviceId;
+	}
+
+	public int getVendorId() {
+		return (int) (modelKey >> 32);
+	}
+
+	public int getModelId() {
+		return (int) modelKey;
+	}
+
+	public int getFirmwareVersion() {
+		return firmwareVersion;
+	}
+
+	public long getDownloadedAt() {
+		return downloadedAt;
+	}
+}
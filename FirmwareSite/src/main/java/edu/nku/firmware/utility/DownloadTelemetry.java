@@ -0,0 +1,126 @@
+package edu.nku.firmware.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class DownloadTelemetry {
+	/*
+	 * Records which device downloaded which firmware, and when. Request
+	 * threads only offer an event to a lock-free ring; a background thread
+	 * drains it and hands batches of up to BATCH_SIZE events to
+	 * DataUtility.writeDatabaseEntries, one transaction each. When the ring
+	 * is full, events are dropped and counted rather than slowing the
+	 * download down.
+	 */
+
+	private static final String BUFFER_SIZE_PROPERTY = "firmware.telemetry.bufferSize";
+	private static final String FLUSH_INTERVAL_PROPERTY = "firmware.telemetry.flushInterval";
+
+	private static final int BATCH_SIZE = 4096;
+
+	private final DataUtility store;
+	private final ServiceLogger logger;
+	private final MpscRingBuffer<DownloadEvent> ring;
+	private final long flushIntervalNanos;
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final Thread writerThread;
+	private volatile boolean running = true;
+
+	public DownloadTelemetry(DataUtility store, ServiceLogger logger) {
+		this.store = store;
+		this.logger = logger;
+		this.ring = new MpscRingBuffer<>(Integer.getInteger(BUFFER_SIZE_PROPERTY, 65536));
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(FLUSH_INTERVAL_PROPERTY, 250));
+		this.writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "download-telemetry");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	public void recordDownload(String deviceId, int vendorId, int modelId, int firmwareVersion) {
+		DownloadEvent event = new DownloadEvent(deviceId, vendorId, modelId, firmwareVersion,
+				System.currentTimeMillis());
+		if (!ring.offer(event)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		recorded.incrementAndGet();
+		if (ring.size() >= BATCH_SIZE) {
+			// a full batch is waiting, so there is no reason to sit out the interval
+			LockSupport.unpark(writerThread);
+		}
+	}
+
+	public long getRecordedCount() {
+		return recorded.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	public int getPendingCount() {
+		return ring.size();
+	}
+
+	/*
+	 * Stops the writer after it has written everything already queued.
+	 */
+	public void close() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drainLoop() {
+		List<DownloadEvent> batch = new ArrayList<>(BATCH_SIZE);
+		while (true) {
+			batch.clear();
+			ring.drainTo(batch, BATCH_SIZE);
+			if (batch.isEmpty() && ring.size() > 0) {
+				// a producer has claimed the next slot but not filled it yet
+				Thread.yield();
+				continue;
+			}
+			if (batch.isEmpty()) {
+				if (!running) {
+					break;
+				}
+				LockSupport.parkNanos(flushIntervalNanos);
+				continue;
+			}
+			try {
+				if (store.writeDatabaseEntries(batch)) {
+					written.addAndGet(batch.size());
+				} else {
+					// keeping failed batches would let a broken database exhaust memory
+					dropped.addAndGet(batch.size());
+				}
+			} catch (RuntimeException e) {
+				logger.writeLog("DownloadTelemetry.drainLoop() - Could not write download events.");
+				dropped.addAndGet(batch.size());
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package edu.nku.firmware.utility;
+
+import java.util.Collection;
+import java.util.Map;
+
+public interface FirmwareCatalog {
+	/*
+	 * Where firmware versions, vendor key pairs and image signatures are
+	 * kept. DataUtility keeps them in SQLite; InMemoryFirmwareCatalog
+	 * serves versions from memory and writes them back to SQLite in the
+	 * background. Models without a version read as 0.
+	 */
+
+	int getFirmwareVersion(String vendorId, String modelId);
+
+	/*
+	 * Returns the version if it can be answered without touching the
+	 * database, otherwise null.
+	 */
+	Integer peekFirmwareVersion(String vendorId, String modelId);
+
+	/*
+	 * Whether the model has ever been given a version, which a version of
+	 * 0 cannot tell apart.
+	 */
+	boolean hasModel(String vendorId, String modelId);
+
+	Map<Integer, Integer> getFirmwareVersions(int vendorId, Collection<Integer> modelIds);
+
+	void updateFirmwareVersions(int vendorId);
+
+	boolean publishFirmwareVersions(int vendorId, Map<Integer, Integer> modelVersions);
+
+	void tickUpFirmwareVersion(String pVendorId, String pModelId, int firmwareVersion);
+
+	void addVersionListener(FirmwareVersionListener listener);
+
+	void removeVersionListener(FirmwareVersionListener listener);
+
+	void storeKeyPair(byte[] publicString, byte[] privateString);
+
+	byte[] retrievePublicKey();
+
+	byte[] retrievePrivateKey();
+
+	void storeVendorKeyPair(int vendorId, byte[] publicString, byte[] privateString);
+
+	byte[] retrieveVendorPublicKey(int vendorId);
+
+	byte[] retrieveVendorPrivateKey(int vendorId);
+
+	/*
+	 * Signing keys are kept apart from the RSA keys that encrypt responses.
+	 * keyId is the hosted vendor's id, or 0 for the site's own key.
+	 */
+	void storeSigningKeyPair(int keyId, byte[] publicString, byte[] privateString);
+
+	byte[] retrieveSigningPublicKey(int keyId);
+
+	byte[] retrieveSigningPrivateKey(int keyId);
+
+	void storeSignature(int vendorId, int modelId, int firmwareVersion, String algorithm, byte[] contentHash,
+			byte[] signature);
+
+	/*
+	 * The stored signature of an image, or null if it was never signed
+	 * with algorithm or was signed when its content had another SHA-256.
+	 */
+	byte[] retrieveSignature(int vendorId, int modelId, int firmwareVersion, String algorithm, byte[] contentHash);
+
+	/*
+	 * Blocks until every change accepted so far is in the database.
+	 */
+	void flush();
+}
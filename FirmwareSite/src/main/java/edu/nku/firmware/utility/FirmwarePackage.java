@@ -0,0 +1,193 @@
+package edu.nku.firmware.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.StringUtils;
+
+public class FirmwarePackage {
+	/*
+	 * An immutable firmware image for one (vendor, model, version). An image
+	 * from the firmware store is only a path and a size; its bytes are read
+	 * from the file each time they are needed, so caching packages costs
+	 * the same however large the images are. Generated images are held in
+	 * memory. A delta package holds a DeltaEncoder delta from baseVersion
+	 * instead of the full image.
+	 */
+
+	private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+	private static final long HASH_MAP_BYTES = 64L << 20;
+
+	private final int vendorId;
+	private final int modelId;
+	private final int version;
+	private final Integer baseVersion;
+	private final byte[] content;
+	private final Path file;
+	private final int size;
+	private final long lastModified;
+	private volatile byte[] contentHash;
+	private volatile byte[] signature;
+
+	public FirmwarePackage(int vendorId, int modelId, int version, byte[] content) {
+		this(vendorId, modelId, version, null, content);
+	}
+
+	public FirmwarePackage(int vendorId, int modelId, int version, Integer baseVersion, byte[] content) {
+		this(vendorId, modelId, version, baseVersion, content, System.currentTimeMillis());
+	}
+
+	public FirmwarePackage(int vendorId, int modelId, int version, Integer baseVersion, byte[] content,
+			long lastModified) {
+		this(vendorId, modelId, version, baseVersion, content, null, content.length, lastModified);
+	}
+
+	public FirmwarePackage(int vendorId, int modelId, int version, Integer baseVersion, Path file, int size,
+			long lastModified) {
+		this(vendorId, modelId, version, baseVersion, null, file, size, lastModified);
+	}
+
+	private FirmwarePackage(int vendorId, int modelId, int version, Integer baseVersion, byte[] content, Path file,
+			int size, long lastModified) {
+		this.vendorId = vendorId;
+		this.modelId = modelId;
+		this.version = version;
+		this.baseVersion = baseVersion;
+		this.content = content;
+		this.file = file;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	public int getVendorId() {
+		return vendorId;
+	}
+
+	public int getModelId() {
+		return modelId;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/*
+	 * The version a delta applies to, or null for a full image.
+	 */
+	public Integer getBaseVersion() {
+		return baseVersion;
+	}
+
+	public boolean isDelta() {
+		return baseVersion != null;
+	}
+
+	/*
+	 * The image held in memory, or null when it lives in the firmware store.
+	 */
+	public byte[] getContent() {
+		return content;
+	}
+
+	/*
+	 * The image, read from the backing file when there is one. The caller
+	 * owns the copy; the package does not keep it.
+	 */
+	public byte[] readContent() throws IOException {
+		return (file == null) ? content : Files.readAllBytes(file);
+	}
+
+	public InputStream openContent() throws IOException {
+		return (file == null) ? new ByteArrayInputStream(content) : Files.newInputStream(file);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/*
+	 * When the image last changed, in milliseconds: the file's modification
+	 * time, or for an in-memory image whatever its builder chose, by
+	 * default when it was assembled.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/*
+	 * The heap this package holds on to, for weighing it in a cache.
+	 */
+	public int getHeapSize() {
+		return (content == null) ? 0 : content.length;
+	}
+
+	/*
+	 * The backing file in the firmware store, or null when the package was
+	 * assembled in memory.
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/*
+	 * The SHA-256 of the image, which a stored signature must have been
+	 * made over to be used for it. Computed once, on first use; a stored
+	 * image is digested from the mapped file rather than read onto the heap.
+	 */
+	public byte[] getContentHash() throws IOException {
+		byte[] hash = contentHash;
+		if (hash != null) {
+			return hash;
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("No " + CONTENT_HASH_ALGORITHM + " digest available", e);
+		}
+		if (file == null) {
+			digest.update(content);
+		} else {
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				long fileSize = channel.size();
+				for (long position = 0; position < fileSize; position += HASH_MAP_BYTES) {
+					digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(HASH_MAP_BYTES, fileSize - position)));
+				}
+			} finally {
+				channel.close();
+			}
+		}
+		hash = digest.digest();
+		contentHash = hash;
+		return hash;
+	}
+
+	/*
+	 * The detached signature over the raw image, or null until it is signed.
+	 */
+	public byte[] getSignature() {
+		return signature;
+	}
+
+	public void setSignature(byte[] signature) {
+		this.signature = signature;
+	}
+
+	/*
+	 * The Base64 form sent inside update responses. It is not kept: the
+	 * encrypted response built from it is what gets cached.
+	 */
+	public String getEncodedContent() throws IOException {
+		return StringUtils.newStringUtf8(Base64.encodeBase64(readContent()));
+	}
+}
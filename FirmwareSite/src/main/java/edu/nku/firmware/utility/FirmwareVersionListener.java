@@ -0,0 +1,9 @@
+package edu.nku.firmware.utility;
+
+public interface FirmwareVersionListener {
+	/*
+	 * Called after a new firmware version for a model has been committed.
+	 * previousVersion is -1 when the model had no version before.
+	 */
+	void firmwareVersionChanged(int vendorId, int modelId, int previousVersion, int newVersion);
+}
@@ -0,0 +1,233 @@
+package edu.nku.firmware.utility;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+
+public class InMemoryFirmwareCatalog implements FirmwareCatalog {
+	/*
+	 * Keeps every firmware version in a primitive map keyed by the packed
+	 * (vendorId, modelId), loaded from SQLite once at startup. Reads take
+	 * an optimistic stamp and never touch JDBC. Changes are applied in
+	 * memory, listeners are told right away, and the same changes are
+	 * handed to the store's write-behind queue, which commits them in
+	 * batches. When that queue is full, a change is flushed under the write
+	 * lock, so readers wait for the database rather than the heap growing;
+	 * memory stays the source of truth for a change the queue drops. Key
+	 * pairs and signatures are read rarely and go straight to the store.
+	 */
+
+	private static final int MISSING = -1;
+
+	private final DataUtility store;
+	private final ServiceLogger logger;
+	private final StampedLock lock = new StampedLock();
+	private final LongIntHashMap versions;
+	private final List<FirmwareVersionListener> versionListeners = new CopyOnWriteArrayList<>();
+	private final WriteBehindQueue writeBehind;
+
+	public InMemoryFirmwareCatalog(DataUtility store, ServiceLogger logger) {
+		this.store = store;
+		this.logger = logger;
+		this.versions = store.loadFirmwareVersions();
+		this.writeBehind = store.getWriteBehindQueue();
+		logger.writeLog("InMemoryFirmwareCatalog - Loaded " + versions.size() + " firmware versions.");
+	}
+
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return versions.size();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private int lookup(long key) {
+		long stamp = lock.tryOptimisticRead();
+		int version = versions.get(key, MISSING);
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				version = versions.get(key, MISSING);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return version;
+	}
+
+	public int getFirmwareVersion(String vendorId, String modelId) {
+		try {
+			int version = lookup(DataUtility.packKey(Integer.parseInt(vendorId), Integer.parseInt(modelId)));
+			return (version == MISSING) ? 0 : version;
+		} catch (NumberFormatException e) {
+			logger.writeLog("InMemoryFirmwareCatalog.getFirmwareVersion() - Invalid vendor or model id.");
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	public Integer peekFirmwareVersion(String vendorId, String modelId) {
+		// everything is in memory, so a peek is a full lookup
+		try {
+			int version = lookup(DataUtility.packKey(Integer.parseInt(vendorId), Integer.parseInt(modelId)));
+			return (version == MISSING) ? 0 : version;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public boolean hasModel(String vendorId, String modelId) {
+		try {
+			return lookup(DataUtility.packKey(Integer.parseInt(vendorId), Integer.parseInt(modelId))) != MISSING;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	public Map<Integer, Integer> getFirmwareVersions(int vendorId, Collection<Integer> modelIds) {
+		Map<Integer, Integer> result = new HashMap<>();
+		for (Integer modelId : modelIds) {
+			int version = lookup(DataUtility.packKey(vendorId, modelId));
+			result.put(modelId, (version == MISSING) ? 0 : version);
+		}
+		return result;
+	}
+
+	public void updateFirmwareVersions(int vendorId) {
+		Random rand = new Random();
+		Map<Integer, Integer> modelVersions = new LinkedHashMap<>();
+		for (int modelId = 0; modelId < 10; modelId++) {
+			modelVersions.put(modelId, rand.nextInt(100));
+		}
+		publishFirmwareVersions(vendorId, modelVersions);
+	}
+
+	public boolean publishFirmwareVersions(int vendorId, Map<Integer, Integer> modelVersions) {
+		if (modelVersions.isEmpty()) {
+			return true;
+		}
+		Map<Integer, Integer> published = new LinkedHashMap<>(modelVersions);
+		int[] previousVersions = new int[published.size()];
+		long stamp = lock.writeLock();
+		try {
+			// queued under the lock so the queue sees changes in map order
+			int i = 0;
+			for (Map.Entry<Integer, Integer> entry : published.entrySet()) {
+				long key = DataUtility.packKey(vendorId, entry.getKey());
+				previousVersions[i++] = versions.put(key, entry.getValue(), MISSING);
+				writeBehind.put(key, entry.getValue());
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+
+		int i = 0;
+		for (Map.Entry<Integer, Integer> entry : published.entrySet()) {
+			fireVersionChanged(vendorId, entry.getKey(), previousVersions[i++], entry.getValue());
+		}
+		return true;
+	}
+
+	public void tickUpFirmwareVersion(String pVendorId, String pModelId, int firmwareVersion) {
+		int vendorId = Integer.parseInt(pVendorId);
+		int modelId = Integer.parseInt(pModelId);
+		long key = DataUtility.packKey(vendorId, modelId);
+		int previousVersion;
+		long stamp = lock.writeLock();
+		try {
+			// like the SQL UPDATE, only models that already have a row change
+			previousVersion = versions.get(key, MISSING);
+			if (previousVersion != MISSING) {
+				versions.put(key, firmwareVersion, MISSING);
+				writeBehind.put(key, firmwareVersion);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		if (previousVersion == MISSING) {
+			return;
+		}
+		fireVersionChanged(vendorId, modelId, previousVersion, firmwareVersion);
+	}
+
+	public void addVersionListener(FirmwareVersionListener listener) {
+		versionListeners.add(listener);
+	}
+
+	public void removeVersionListener(FirmwareVersionListener listener) {
+		versionListeners.remove(listener);
+	}
+
+	private void fireVersionChanged(int vendorId, int modelId, int previousVersion, int newVersion) {
+		if (previousVersion == newVersion) {
+			return;
+		}
+		for (FirmwareVersionListener listener : versionListeners) {
+			try {
+				listener.firmwareVersionChanged(vendorId, modelId, previousVersion, newVersion);
+			} catch (RuntimeException e) {
+				logger.writeLog("InMemoryFirmwareCatalog.fireVersionChanged() - Listener failed.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void storeKeyPair(byte[] publicString, byte[] privateString) {
+		store.storeKeyPair(publicString, privateString);
+	}
+
+	public byte[] retrievePublicKey() {
+		return store.retrievePublicKey();
+	}
+
+	public byte[] retrievePrivateKey() {
+		return store.retrievePrivateKey();
+	}
+
+	public void storeVendorKeyPair(int vendorId, byte[] publicString, byte[] privateString) {
+		store.storeVendorKeyPair(vendorId, publicString, privateString);
+	}
+
+	public byte[] retrieveVendorPublicKey(int vendorId) {
+		return store.retrieveVendorPublicKey(vendorId);
+	}
+
+	public byte[] retrieveVendorPrivateKey(int vendorId) {
+		return store.retrieveVendorPrivateKey(vendorId);
+	}
+
+	public void storeSigningKeyPair(int keyId, byte[] publicString, byte[] privateString) {
+		store.storeSigningKeyPair(keyId, publicString, privateString);
+	}
+
+	public byte[] retrieveSigningPublicKey(int keyId) {
+		return store.retrieveSigningPublicKey(keyId);
+	}
+
+	public byte[] retrieveSigningPrivateKey(int keyId) {
+		return store.retrieveSigningPrivateKey(keyId);
+	}
+
+	public void storeSignature(int vendorId, int modelId, int firmwareVersion, String algorithm, byte[] contentHash,
+			byte[] signature) {
+		store.storeSignature(vendorId, modelId, firmwareVersion, algorithm, contentHash, signature);
+	}
+
+	public byte[] retrieveSignature(int vendorId, int modelId, int firmwareVersion, String algorithm,
+			byte[] contentHash) {
+		return store.retrieveSignature(vendorId, modelId, firmwareVersion, algorithm, contentHash);
+	}
+
+	public void flush() {
+		if (!writeBehind.flush()) {
+			logger.writeLog("InMemoryFirmwareCatalog.flush() - Pending writes did not finish.");
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package edu.nku.firmware.utility;
+
+public class LongIntHashMap {
+	/*
+	 * An open-addressing map from long keys to int values with linear
+	 * probing and no boxing. Keys and values share one array, key at 2i and
+	 * value at 2i+1, so a reader always sees a consistent table even while a
+	 * writer replaces it; that is what lets InMemoryFirmwareCatalog read
+	 * under an optimistic StampedLock stamp. Not thread-safe by itself.
+	 */
+
+	// marks a free slot; the key that collides with it is kept on the side
+	private static final long FREE = Long.MIN_VALUE;
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] table;
+	private int size;
+	private boolean hasFreeKey;
+	private int freeKeyValue;
+
+	public LongIntHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongIntHashMap(int expectedSize) {
+		this.table = newTable(capacityFor(expectedSize));
+	}
+
+	public int get(long key, int missingValue) {
+		if (key == FREE) {
+			return hasFreeKey ? freeKeyValue : missingValue;
+		}
+		long[] tab = table;
+		int slot = slotOf(tab, key);
+		return (slot < 0) ? missingValue : (int) tab[(slot << 1) + 1];
+	}
+
+	public boolean containsKey(long key) {
+		return (key == FREE) ? hasFreeKey : slotOf(table, key) >= 0;
+	}
+
+	/*
+	 * Returns the previous value, or missingValue if the key was absent.
+	 */
+	public int put(long key, int value, int missingValue) {
+		if (key == FREE) {
+			int previous = hasFreeKey ? freeKeyValue : missingValue;
+			if (!hasFreeKey) {
+				size++;
+			}
+			hasFreeKey = true;
+			freeKeyValue = value;
+			return previous;
+		}
+		int mask = (table.length >> 1) - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			long k = table[slot << 1];
+			if (k == key) {
+				int previous = (int) table[(slot << 1) + 1];
+				table[(slot << 1) + 1] = value;
+				return previous;
+			}
+			if (k == FREE) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if ((size + 1) * 2 > (table.length >> 1)) {
+			// keep the load at or under one half; the new table is published whole
+			table = rehash(table, (table.length >> 1) * 2);
+			return put(key, value, missingValue);
+		}
+		table[(slot << 1) + 1] = value;
+		table[slot << 1] = key;
+		size++;
+		return missingValue;
+	}
+
+	/*
+	 * Returns the removed value, or missingValue if the key was absent.
+	 * Later keys in the same probe run are shifted back into the hole, so
+	 * lookups never need tombstones.
+	 */
+	public int remove(long key, int missingValue) {
+		if (key == FREE) {
+			if (!hasFreeKey) {
+				return missingValue;
+			}
+			hasFreeKey = false;
+			size--;
+			return freeKeyValue;
+		}
+		int gap = slotOf(table, key);
+		if (gap < 0) {
+			return missingValue;
+		}
+		int previous = (int) table[(gap << 1) + 1];
+		int mask = (table.length >> 1) - 1;
+		int slot = (gap + 1) & mask;
+		long k;
+		while ((k = table[slot << 1]) != FREE) {
+			// a key may fill the gap only if the gap lies between its home slot and where it sits
+			int home = hash(k) & mask;
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				table[(gap << 1) + 1] = table[(slot << 1) + 1];
+				table[gap << 1] = k;
+				gap = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		table[gap << 1] = FREE;
+		size--;
+		return previous;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static int slotOf(long[] tab, long key) {
+		int mask = (tab.length >> 1) - 1;
+		int slot = hash(key) & mask;
+		// bounded, so a torn read during an optimistic lookup cannot spin
+		for (int probes = 0; probes <= mask; probes++) {
+			long k = tab[slot << 1];
+			if (k == key) {
+				return slot;
+			}
+			if (k == FREE) {
+				return -1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static long[] rehash(long[] old, int capacity) {
+		long[] tab = newTable(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < old.length; i += 2) {
+			long key = old[i];
+			if (key == FREE) {
+				continue;
+			}
+			int slot = hash(key) & mask;
+			while (tab[slot << 1] != FREE) {
+				slot = (slot + 1) & mask;
+			}
+			tab[slot << 1] = key;
+			tab[(slot << 1) + 1] = old[i + 1];
+		}
+		return tab;
+	}
+
+	private static long[] newTable(int capacity) {
+		long[] tab = new long[capacity * 2];
+		for (int i = 0; i < tab.length; i += 2) {
+			tab[i] = FREE;
+		}
+		return tab;
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2L) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private static int hash(long key) {
+		// the murmur3 finalizer spreads the vendor and model halves over every bit
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
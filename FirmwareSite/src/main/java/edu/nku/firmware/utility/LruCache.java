@@ -0,0 +1,177 @@
+package edu.nku.firmware.utility;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LruCache<K, V> {
+	/*
+	 * A bounded, thread-safe LRU cache. Entries are spread over independently
+	 * locked segments so concurrent readers rarely contend on the same lock;
+	 * each segment evicts its own least recently used entries when it holds
+	 * too many entries or, if a weigher is given, too many bytes.
+	 */
+
+	public interface Weigher<V> {
+		long weigh(V value);
+	}
+
+	private static final int SEGMENT_COUNT = 16;
+
+	private final Segment<K, V>[] segments;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public LruCache(int maxSize) {
+		this(maxSize, Long.MAX_VALUE, null);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public LruCache(int maxSize, long maxWeight, Weigher<V> weigher) {
+		int segmentCount = Math.min(SEGMENT_COUNT, Math.max(1, maxSize));
+		int segmentSize = Math.max(1, (maxSize + segmentCount - 1) / segmentCount);
+		long segmentWeight = (maxWeight == Long.MAX_VALUE) ? Long.MAX_VALUE : Math.max(1, maxWeight / segmentCount);
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment<>(segmentSize, segmentWeight, weigher, evictions);
+		}
+	}
+
+	public V get(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		V value;
+		synchronized (segment) {
+			value = segment.entries.get(key);
+		}
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/*
+	 * Looks up a value without counting a hit or miss.
+	 */
+	public V peek(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.entries.get(key);
+		}
+	}
+
+	public void put(K key, V value) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, value);
+		}
+	}
+
+	public V putIfAbsent(K key, V value) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			V existing = segment.entries.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			segment.put(key, value);
+			return value;
+		}
+	}
+
+	public V invalidate(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.remove(key);
+		}
+	}
+
+	public void invalidateAll() {
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				segment.entries.clear();
+				segment.weight = 0;
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+
+	public long weight() {
+		long weight = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				weight += segment.weight;
+			}
+		}
+		return weight;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private Segment<K, V> segmentFor(K key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[(hash & 0x7fffffff) % segments.length];
+	}
+
+	private static class Segment<K, V> {
+		private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+		private final int maxSize;
+		private final long maxWeight;
+		private final Weigher<V> weigher;
+		private final AtomicLong evictions;
+		private long weight = 0;
+
+		Segment(int maxSize, long maxWeight, Weigher<V> weigher, AtomicLong evictions) {
+			this.maxSize = maxSize;
+			this.maxWeight = maxWeight;
+			this.weigher = weigher;
+			this.evictions = evictions;
+		}
+
+		void put(K key, V value) {
+			V previous = entries.put(key, value);
+			weight += weigh(value) - weigh(previous);
+			// evict from the cold end, but always keep the entry just added
+			Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+			while (entries.size() > 1 && (entries.size() > maxSize || weight > maxWeight)) {
+				Map.Entry<K, V> entry = eldest.next();
+				weight -= weigh(entry.getValue());
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		V remove(K key) {
+			V previous = entries.remove(key);
+			weight -= weigh(previous);
+			return previous;
+		}
+
+		private long weigh(V value) {
+			return (value == null || weigher == null) ? 0 : weigher.weigh(value);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package edu.nku.firmware.utility;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class MpscRingBuffer<T> {
+	/*
+	 * A bounded, lock-free ring buffer for many producers and one consumer.
+	 * Producers claim a slot with a CAS on the tail and never block: offer()
+	 * returns false when the ring is full. Only one thread may poll.
+	 */
+
+	private final AtomicReferenceArray<T> slots;
+	private final int capacity;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
+
+	public MpscRingBuffer(int requestedCapacity) {
+		int size = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<>(size);
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	public boolean offer(T item) {
+		long claimed;
+		do {
+			claimed = tail.get();
+			if (claimed - head >= capacity) {
+				return false;
+			}
+		} while (!tail.compareAndSet(claimed, claimed + 1));
+		slots.lazySet((int) claimed & mask, item);
+		return true;
+	}
+
+	/*
+	 * Consumer only. Returns null when the ring is empty, or when the next
+	 * producer has claimed its slot but not yet published into it.
+	 */
+	public T poll() {
+		long current = head;
+		int index = (int) current & mask;
+		T item = slots.get(index);
+		if (item == null) {
+			return null;
+		}
+		slots.lazySet(index, null);
+		head = current + 1;
+		return item;
+	}
+
+	public int drainTo(Collection<? super T> target, int maxItems) {
+		int drained = 0;
+		T item;
+		while (drained < maxItems && (item = poll()) != null) {
+			target.add(item);
+			drained++;
+		}
+		return drained;
+	}
+}
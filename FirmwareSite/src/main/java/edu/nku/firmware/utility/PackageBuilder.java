@@ -0,0 +1,131 @@
+package edu.nku.firmware.utility;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class PackageBuilder {
+	/*
+	 * Assembles firmware packages once per (vendor, model, version) and keeps
+	 * them in memory. When a firmware store directory is configured, images
+	 * are served from <store>/<vendor>/<model>/<version>.bin; the cached
+	 * package only records the file and its size. Published files are never
+	 * rewritten, so a cached package stays valid. Models without a stored
+	 * image get the generated placeholder update, which is held in memory
+	 * and counts towards firmware.cache.packages.maxBytes. A placeholder
+	 * never changes, so it is always dated 0 and keeps its ETag across
+	 * rebuilds. Each hit on a cached placeholder checks the store again; an
+	 * image that has since been stored replaces it, and image listeners are
+	 * told with previousVersion equal to newVersion.
+	 */
+
+	private static final String STORE_PATH_PROPERTY = "firmware.store.path";
+	private static final String CACHE_SIZE_PROPERTY = "firmware.cache.packages.size";
+	private static final int DEFAULT_CACHE_SIZE = 1000;
+	private static final String MAX_BYTES_PROPERTY = "firmware.cache.packages.maxBytes";
+	private static final long DEFAULT_MAX_BYTES = 16L << 20;
+
+	private ServiceLogger logger;
+	private Path storePath;
+	private LruCache<String, FirmwarePackage> packages;
+	private final List<FirmwareVersionListener> imageListeners = new CopyOnWriteArrayList<>();
+
+	public PackageBuilder(ServiceLogger logger) {
+		this.logger = logger;
+		String store = System.getProperty(STORE_PATH_PROPERTY);
+		this.storePath = (store == null) ? null : Paths.get(store).toAbsolutePath();
+		this.packages = new LruCache<>(Integer.getInteger(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE),
+				Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES), new LruCache.Weigher<FirmwarePackage>() {
+					@Override
+					public long weigh(FirmwarePackage value) {
+						return value.getHeapSize();
+					}
+				});
+	}
+
+	public Path getStorePath() {
+		return storePath;
+	}
+
+	public LruCache<String, FirmwarePackage> getPackageCache() {
+		return packages;
+	}
+
+	public void addImageListener(FirmwareVersionListener listener) {
+		imageListeners.add(listener);
+	}
+
+	public FirmwarePackage getPackage(String vendorId, String modelId, int version) throws IOException {
+		String key = vendorId + ":" + modelId + ":" + version;
+		FirmwarePackage oPackage = packages.get(key);
+		if (oPackage != null && !isSuperseded(oPackage)) {
+			return oPackage;
+		}
+		FirmwarePackage built = buildPackage(Integer.parseInt(vendorId), Integer.parseInt(modelId), version);
+		if (oPackage == null) {
+			return packages.putIfAbsent(key, built);
+		}
+		packages.put(key, built);
+		logger.writeLog("PackageBuilder.getPackage() - Stored image replaces the placeholder for model " + modelId
+				+ " version " + version);
+		for (FirmwareVersionListener listener : imageListeners) {
+			try {
+				listener.firmwareVersionChanged(built.getVendorId(), built.getModelId(), version, version);
+			} catch (RuntimeException e) {
+				logger.writeLog("PackageBuilder.getPackage() - Listener failed.");
+				e.printStackTrace();
+			}
+		}
+		return built;
+	}
+
+	private boolean isSuperseded(FirmwarePackage oPackage) {
+		if (oPackage.getFile() != null || storePath == null) {
+			return false;
+		}
+		Path file = storedImage(oPackage.getVendorId(), oPackage.getModelId(), oPackage.getVersion());
+		return Files.isRegularFile(file);
+	}
+
+	private FirmwarePackage buildPackage(int vendorId, int modelId, int version) throws IOException {
+		Path file = storedImage(vendorId, modelId, version);
+		if (file != null && Files.isRegularFile(file)) {
+			logger.writeLog("PackageBuilder.buildPackage() - Loading " + file);
+			return new FirmwarePackage(vendorId, modelId, version, null, file, imageSize(file),
+					Files.getLastModifiedTime(file).toMillis());
+		}
+
+		// the same bytes the update file used to hold on disk, built in memory instead
+		String separator = System.lineSeparator();
+		StringBuilder sb = new StringBuilder();
+		sb.append("Firwmare Update").append(separator);
+		sb.append("Firmware ID: ").append(vendorId).append(separator);
+		sb.append("Model ID: ").append(modelId).append(separator);
+		sb.append("Version: ").append(version).append(separator);
+		return new FirmwarePackage(vendorId, modelId, version, null, sb.toString().getBytes(StandardCharsets.UTF_8),
+				0);
+	}
+
+	/*
+	 * The size of a stored image or delta. Responses carry the image as one
+	 * Base64 string, so anything past 2 GB could never be sent.
+	 */
+	static int imageSize(Path file) throws IOException {
+		long size = Files.size(file);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Firmware image is too large: " + file);
+		}
+		return (int) size;
+	}
+
+	public Path storedImage(int vendorId, int modelId, int version) {
+		if (storePath == null) {
+			return null;
+		}
+		return storePath.resolve(String.valueOf(vendorId)).resolve(String.valueOf(modelId)).resolve(version + ".bin");
+	}
+}
@@ -0,0 +1,126 @@
+package edu.nku.firmware.utility;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class PackageSigner implements FirmwareVersionListener {
+	/*
+	 * Signs each firmware image when its version is published, on a
+	 * background thread, and stores the signature in the catalog together
+	 * with the SHA-256 of the bytes it covers. A stored signature is only
+	 * reused while the image still has that hash, so a placeholder's
+	 * signature is never served for the stored image that replaces it.
+	 * Serving only reads signatures: getSignature() answers from the
+	 * package, or from the catalog for a package loaded after a restart or
+	 * an eviction, and never touches a private key. Only an image with no
+	 * stored signature for its current hash is queued for signing and
+	 * reported as missing until that is done.
+	 */
+
+	private final FirmwareCatalog catalog;
+	private final PackageBuilder packageBuilder;
+	private final ServiceLogger logger;
+	private final ConcurrentMap<Integer, CryptoUtility> vendorCrypto = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Boolean> queued = new ConcurrentHashMap<>();
+	private final ExecutorService signer;
+
+	public PackageSigner(FirmwareCatalog catalog, PackageBuilder packageBuilder, ServiceLogger logger) {
+		this.catalog = catalog;
+		this.packageBuilder = packageBuilder;
+		this.logger = logger;
+		this.signer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "firmware-package-signer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void registerVendor(int vendorId, CryptoUtility crypto) {
+		vendorCrypto.put(vendorId, crypto);
+	}
+
+	/*
+	 * The image's signature, or null if it has not been signed yet.
+	 */
+	public byte[] getSignature(FirmwarePackage oPackage) throws IOException {
+		byte[] signature = oPackage.getSignature();
+		if (signature != null) {
+			return signature;
+		}
+		CryptoUtility crypto = vendorCrypto.get(oPackage.getVendorId());
+		if (crypto == null) {
+			return null;
+		}
+		// hashed once per package; the package keeps the hash
+		signature = catalog.retrieveSignature(oPackage.getVendorId(), oPackage.getModelId(), oPackage.getVersion(),
+				crypto.getSignatureAlgorithm(), oPackage.getContentHash());
+		if (signature != null) {
+			oPackage.setSignature(signature);
+			return signature;
+		}
+		requestSignature(oPackage.getVendorId(), oPackage.getModelId(), oPackage.getVersion());
+		return null;
+	}
+
+	@Override
+	public void firmwareVersionChanged(int vendorId, int modelId, int previousVersion, int newVersion) {
+		requestSignature(vendorId, modelId, newVersion);
+	}
+
+	public void shutdown() {
+		signer.shutdownNow();
+	}
+
+	private void requestSignature(final int vendorId, final int modelId, final int version) {
+		if (!vendorCrypto.containsKey(vendorId)) {
+			return;
+		}
+		final String key = vendorId + ":" + modelId + ":" + version;
+		// many devices asking for the same unsigned image queue it once
+		if (queued.putIfAbsent(key, Boolean.TRUE) != null) {
+			return;
+		}
+		signer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sign(vendorId, modelId, version);
+				} catch (IOException | InvalidKeyException | SignatureException | RuntimeException e) {
+					logger.writeLog("PackageSigner.sign() - Could not sign model " + modelId + " version " + version);
+					e.printStackTrace();
+				} finally {
+					queued.remove(key);
+				}
+			}
+		});
+	}
+
+	private void sign(int vendorId, int modelId, int version)
+			throws IOException, InvalidKeyException, SignatureException {
+		CryptoUtility crypto = vendorCrypto.get(vendorId);
+		FirmwarePackage oPackage = packageBuilder.getPackage(String.valueOf(vendorId), String.valueOf(modelId),
+				version);
+		if (oPackage.getSignature() != null) {
+			return;
+		}
+		String algorithm = crypto.getSignatureAlgorithm();
+		byte[] contentHash = oPackage.getContentHash();
+		byte[] signature = catalog.retrieveSignature(vendorId, modelId, version, algorithm, contentHash);
+		if (signature == null) {
+			// stored images are digested from the mapped file rather than read onto the heap
+			signature = (oPackage.getFile() != null) ? crypto.signFile(oPackage.getFile())
+					: crypto.sign(oPackage.getContent());
+			catalog.storeSignature(vendorId, modelId, version, algorithm, contentHash, signature);
+		}
+		oPackage.setSignature(signature);
+	}
+}
@@ -0,0 +1,75 @@
+package edu.nku.firmware.utility;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PooledConnection {
+	/*
+	 * A pooled SQLite connection along with the prepared statements it has
+	 * already compiled. Only the thread holding the lease may use it.
+	 */
+
+	private final Connection conn;
+	private final Map<String, PreparedStatement> statements = new HashMap<>();
+	private boolean broken = false;
+
+	PooledConnection(Connection conn) {
+		this.conn = conn;
+	}
+
+	public Connection getConnection() {
+		return conn;
+	}
+
+	public PreparedStatement prepareStatement(String query) throws SQLException {
+		PreparedStatement state = statements.get(query);
+		if (state == null) {
+			state = conn.prepareStatement(query);
+			statements.put(query, state);
+		}
+		return state;
+	}
+
+	/*
+	 * Starts a write transaction holding SQLite's write lock from the start.
+	 * setAutoCommit(false) issues a deferred BEGIN, which takes the lock at
+	 * the first write, and a reader upgrading to a writer there gets
+	 * SQLITE_BUSY without waiting out the busy timeout. End the transaction
+	 * with commit() or rollback().
+	 */
+	public void beginImmediate() throws SQLException {
+		prepareStatement("BEGIN IMMEDIATE").execute();
+	}
+
+	public void commit() throws SQLException {
+		prepareStatement("COMMIT").execute();
+	}
+
+	public void rollback() {
+		try {
+			prepareStatement("ROLLBACK").execute();
+		} catch (SQLException e) {
+			// the transaction may still be open, so the pool must not hand this connection out again
+			broken = true;
+		}
+	}
+
+	public void markBroken() {
+		this.broken = true;
+	}
+
+	boolean isBroken() {
+		return broken;
+	}
+
+	void closeConnection() throws SQLException {
+		for (PreparedStatement state : statements.values()) {
+			state.close();
+		}
+		statements.clear();
+		conn.close();
+	}
+}
@@ -1,26 +1,324 @@
 package edu.nku.firmware.utility;
 
-import java.sql.Timestamp;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class ServiceLogger {
 	/*
 	 * A singleton class to centralize disk access to log files.
+	 * Request threads only drop a small record into a lock-free ring; a
+	 * background writer formats and appends them to the log file in batches.
+	 * When the ring is full, messages are dropped and counted rather than
+	 * blocking the caller.
 	 * */
 
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	private static final String LOG_PATH_PROPERTY = "firmware.log.path";
+	private static final String LOG_LEVEL_PROPERTY = "firmware.log.level";
+	private static final String LOG_MAX_BYTES_PROPERTY = "firmware.log.maxBytes";
+	private static final String LOG_MAX_FILES_PROPERTY = "firmware.log.maxFiles";
+	private static final String LOG_BUFFER_PROPERTY = "firmware.log.bufferSize";
+	private static final String LOG_CONSOLE_PROPERTY = "firmware.log.console";
+
+	private static final int BATCH_SIZE = 512;
+	private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
 	private static ServiceLogger instance = null;
-	
-	private ServiceLogger() {}
-	
-	public static ServiceLogger getInstance() {
+
+	private final Level level;
+	private final File logFile;
+	private final long maxBytes;
+	private final int maxFiles;
+	private final boolean console;
+	private final MpscRingBuffer<LogRecord> ring;
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final Thread writerThread;
+	private final Thread shutdownHook;
+	private volatile boolean running = true;
+
+	private Writer out;
+	private long bytesWritten;
+
+	private ServiceLogger() {
+		this.level = parseLevel(System.getProperty(LOG_LEVEL_PROPERTY));
+		this.logFile = new File(System.getProperty(LOG_PATH_PROPERTY, "logs/FirmwareSite.log"));
+		this.maxBytes = Long.getLong(LOG_MAX_BYTES_PROPERTY, 10L << 20);
+		this.maxFiles = Integer.getInteger(LOG_MAX_FILES_PROPERTY, 5);
+		this.console = Boolean.getBoolean(LOG_CONSOLE_PROPERTY);
+		this.ring = new MpscRingBuffer<>(Integer.getInteger(LOG_BUFFER_PROPERTY, 8192));
+
+		this.writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "service-logger");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		this.shutdownHook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		}, "service-logger-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	private static Level parseLevel(String value) {
+		if (value == null) {
+			return Level.INFO;
+		}
+		try {
+			return Level.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			// a mistyped level must not stop the server from starting
+			System.err.println("ServiceLogger - Unknown " + LOG_LEVEL_PROPERTY + " '" + value + "', using INFO.");
+			return Level.INFO;
+		}
+	}
+
+	public static synchronized ServiceLogger getInstance() {
 		if (instance == null) {
 			instance = new ServiceLogger();
 		}
 		return instance;
 	}
-	
+
+	public boolean isEnabled(Level pLevel) {
+		return pLevel.compareTo(level) >= 0;
+	}
+
+	public boolean isDebugEnabled() {
+		return isEnabled(Level.DEBUG);
+	}
+
 	public void writeLog(String x) {
-		Timestamp time = new Timestamp(System.currentTimeMillis());
-		// TODO: Write log files to file system rather than to the console.
-		System.out.println("[" + time + "]" + ":" +x);
+		writeLog(Level.INFO, x);
+	}
+
+	public void debug(String x) {
+		writeLog(Level.DEBUG, x);
+	}
+
+	public void writeLog(Level pLevel, String x) {
+		if (!isEnabled(pLevel)) {
+			return;
+		}
+		if (!ring.offer(new LogRecord(System.currentTimeMillis(), pLevel, x))) {
+			dropped.incrementAndGet();
+		} else if (ring.size() > ring.capacity() / 2) {
+			// wake the writer early instead of waiting out its flush interval
+			LockSupport.unpark(writerThread);
+		}
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/*
+	 * Waits until everything queued before the call is on disk. The writer
+	 * only flushes once it finds the queue empty, so two flushes after the
+	 * call mean a full pass started after it.
+	 */
+	public void flush() {
+		long target = flushes.get() + 2;
+		long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (running && flushes.get() < target && System.nanoTime() < giveUp) {
+			LockSupport.unpark(writerThread);
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/*
+	 * For owners that shut the logger down from their own hook, after
+	 * logging their last messages. Shutdown hooks run in no particular
+	 * order, so otherwise those messages could arrive after the writer quit.
+	 */
+	public void removeShutdownHook() {
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// already shutting down
+		}
+	}
+
+	/*
+	 * Stops the writer after it has written everything already queued.
+	 */
+	public void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drainLoop() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		Date date = new Date();
+		StringBuilder line = new StringBuilder(256);
+		List<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+		long reportedDrops = 0;
+
+		while (true) {
+			batch.clear();
+			ring.drainTo(batch, BATCH_SIZE);
+			if (batch.isEmpty() && ring.size() > 0) {
+				// a producer has claimed the next slot but not filled it yet
+				Thread.yield();
+				continue;
+			}
+
+			long drops = dropped.get();
+			if (drops != reportedDrops) {
+				date.setTime(System.currentTimeMillis());
+				write(line, format, date, Level.WARN, "ServiceLogger - dropped " + (drops - reportedDrops)
+						+ " log messages under load.");
+				reportedDrops = drops;
+			}
+
+			if (batch.isEmpty()) {
+				flushWriter();
+				if (!running) {
+					break;
+				}
+				LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+				continue;
+			}
+			for (LogRecord record : batch) {
+				date.setTime(record.time);
+				write(line, format, date, record.level, record.message);
+			}
+		}
+		closeWriter();
+	}
+
+	private void write(StringBuilder line, SimpleDateFormat format, Date date, Level pLevel, String message) {
+		line.setLength(0);
+		line.append('[').append(format.format(date)).append(']');
+		if (pLevel != Level.INFO) {
+			line.append(' ').append(pLevel.name());
+		}
+		line.append(':').append(message).append(System.lineSeparator());
+		String text = line.toString();
+		if (console) {
+			System.out.print(text);
+		}
+		try {
+			if (out == null || bytesWritten >= maxBytes) {
+				rotate();
+			}
+			out.write(text);
+			bytesWritten += utf8Length(text);
+		} catch (IOException e) {
+			// fall back to the console rather than losing the message
+			System.out.print(text);
+			closeWriter();
+		}
+	}
+
+	/*
+	 * The number of bytes text takes in the log file, without encoding it a
+	 * second time, so rotation happens at maxBytes on disk.
+	 */
+	private static int utf8Length(String text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	private void rotate() throws IOException {
+		closeWriter();
+		File parent = logFile.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		if (logFile.length() >= maxBytes) {
+			for (int i = maxFiles - 1; i >= 1; i--) {
+				File older = new File(logFile.getPath() + "." + i);
+				if (older.exists()) {
+					File target = new File(logFile.getPath() + "." + (i + 1));
+					target.delete();
+					older.renameTo(target);
+				}
+			}
+			File first = new File(logFile.getPath() + ".1");
+			first.delete();
+			logFile.renameTo(first);
+		}
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8),
+				64 * 1024);
+		bytesWritten = logFile.length();
+	}
+
+	private void flushWriter() {
+		if (out != null) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				closeWriter();
+			}
+		}
+		flushes.incrementAndGet();
+	}
+
+	private void closeWriter() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		out = null;
+	}
+
+	private static class LogRecord {
+		final long time;
+		final Level level;
+		final String message;
+
+		LogRecord(long time, Level level, String message) {
+			this.time = time;
+			this.level = level;
+			this.message = message;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,161 @@
+package edu.nku.firmware.utility;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class WriteBehindQueue {
+	/*
+	 * Holds firmware version writes, keyed by DataUtility.packKey, until a
+	 * background thread commits them. A second write to the same (vendor,
+	 * model) before a flush replaces the first, so a hot model costs one row
+	 * per flush however often it changes. A flush starts once batchSize
+	 * models are waiting or flushInterval has passed, and writes everything
+	 * waiting in one transaction.
+	 *
+	 * At most maxPending models wait at once. Past that, a write for another
+	 * model is flushed by its caller, so producers slow to the database's
+	 * pace. If that flush fails too, the database is down and the write is
+	 * dropped rather than queued without bound: put() returns false, and
+	 * the drops are counted and logged like ServiceLogger's.
+	 *
+	 * Entries stay visible to peek() until their row is committed. Flushes
+	 * hold this object's monitor, so a caller that writes the same rows
+	 * directly can synchronize on the queue to keep the two apart.
+	 */
+
+	private static final String BATCH_SIZE_PROPERTY = "firmware.writeBehind.batchSize";
+	private static final String FLUSH_INTERVAL_PROPERTY = "firmware.writeBehind.flushInterval";
+	private static final String MAX_PENDING_PROPERTY = "firmware.writeBehind.maxPending";
+
+	private final DataUtility store;
+	private final ServiceLogger logger;
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final int maxPending;
+	private final ConcurrentMap<Long, Integer> pending = new ConcurrentHashMap<>();
+	private final AtomicLong writtenRows = new AtomicLong();
+	private final AtomicLong droppedWrites = new AtomicLong();
+	private long reportedDrops;
+	private final Thread flusher;
+	private volatile boolean running = true;
+
+	public WriteBehindQueue(DataUtility store, ServiceLogger logger) {
+		this.store = store;
+		this.logger = logger;
+		this.batchSize = Math.max(1, Integer.getInteger(BATCH_SIZE_PROPERTY, 500));
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(FLUSH_INTERVAL_PROPERTY, 1000));
+		this.maxPending = Math.max(1, Integer.getInteger(MAX_PENDING_PROPERTY, 10000));
+		this.flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "firmware-write-behind");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/*
+	 * Queues a write. Returns false if it was dropped because the queue was
+	 * full and the database could not take a flush.
+	 */
+	public boolean put(long key, int firmwareVersion) {
+		// replacing a waiting write never grows the queue
+		if (pending.size() >= maxPending && !pending.containsKey(key) && !flush()) {
+			droppedWrites.incrementAndGet();
+			return false;
+		}
+		pending.put(key, firmwareVersion);
+		if (pending.size() >= batchSize) {
+			LockSupport.unpark(flusher);
+		}
+		return true;
+	}
+
+	/*
+	 * Returns the version waiting to be written for key, or null.
+	 */
+	public Integer peek(long key) {
+		return pending.get(key);
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public long getWrittenCount() {
+		return writtenRows.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedWrites.get();
+	}
+
+	/*
+	 * Commits everything waiting. Returns false if the write failed; the
+	 * entries are then kept for the next attempt.
+	 */
+	public synchronized boolean flush() {
+		if (pending.isEmpty()) {
+			return true;
+		}
+		Map<Long, Integer> batch = new HashMap<>(pending);
+		if (!store.writeFirmwareVersions(batch)) {
+			logger.writeLog("WriteBehindQueue.flush() - Could not write " + batch.size() + " versions; will retry.");
+			return false;
+		}
+		for (Map.Entry<Long, Integer> entry : batch.entrySet()) {
+			// a newer write that arrived meanwhile stays queued
+			pending.remove(entry.getKey(), entry.getValue());
+		}
+		writtenRows.addAndGet(batch.size());
+		return true;
+	}
+
+	/*
+	 * Stops the background thread after a last flush.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		reportDrops();
+	}
+
+	private void flushLoop() {
+		while (running) {
+			if (pending.size() < batchSize) {
+				LockSupport.parkNanos(flushIntervalNanos);
+			}
+			try {
+				if (!flush()) {
+					// back off rather than retrying a failing database in a loop
+					LockSupport.parkNanos(flushIntervalNanos);
+				}
+			} catch (RuntimeException e) {
+				logger.writeLog("WriteBehindQueue.flushLoop() - Flush failed.");
+				e.printStackTrace();
+			}
+			reportDrops();
+		}
+	}
+
+	private void reportDrops() {
+		long drops = droppedWrites.get();
+		if (drops != reportedDrops) {
+			logger.writeLog(ServiceLogger.Level.WARN, "WriteBehindQueue - dropped " + (drops - reportedDrops)
+					+ " version writes; " + pending.size() + " are waiting for the database.");
+			reportedDrops = drops;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package edu.nku.firmware.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+	private static final long SIZE = 1000;
+
+	@Test
+	public void parsesClosedRange() {
+		ByteRange range = ByteRange.parse("bytes=100-199", SIZE);
+		assertEquals(100, range.start);
+		assertEquals(199, range.end);
+		assertEquals(100, range.length());
+		assertEquals("bytes 100-199/1000", range.contentRange(SIZE));
+	}
+
+	@Test
+	public void openRangeRunsToTheEnd() {
+		ByteRange range = ByteRange.parse("bytes=900-", SIZE);
+		assertEquals(900, range.start);
+		assertEquals(999, range.end);
+	}
+
+	@Test
+	public void clampsEndPastTheContent() {
+		ByteRange range = ByteRange.parse("bytes=990-5000", SIZE);
+		assertEquals(990, range.start);
+		assertEquals(999, range.end);
+	}
+
+	@Test
+	public void suffixRangeTakesTheLastBytes() {
+		ByteRange range = ByteRange.parse("bytes=-10", SIZE);
+		assertEquals(990, range.start);
+		assertEquals(999, range.end);
+
+		range = ByteRange.parse("bytes=-5000", SIZE);
+		assertEquals(0, range.start);
+		assertEquals(999, range.end);
+	}
+
+	@Test
+	public void rangesOutsideTheContentAreUnsatisfiable() {
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-", SIZE));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=500-400", SIZE));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", SIZE));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-10", 0));
+	}
+
+	@Test
+	public void malformedOrUnsupportedHeadersServeTheWholeBody() {
+		assertNull(ByteRange.parse(null, SIZE));
+		assertNull(ByteRange.parse("items=0-10", SIZE));
+		assertNull(ByteRange.parse("bytes=0-10,20-30", SIZE));
+		assertNull(ByteRange.parse("bytes=abc-10", SIZE));
+		assertNull(ByteRange.parse("bytes=10", SIZE));
+	}
+
+	@Test
+	public void ifRangeMatchesTheCurrentStrongTag() {
+		assertTrue(ByteRange.ifRangeMatches(null, "8080-1-3-abc-10", 0));
+		assertTrue(ByteRange.ifRangeMatches("\"8080-1-3-abc-10\"", "8080-1-3-abc-10", 0));
+		assertFalse(ByteRange.ifRangeMatches("\"8080-1-2-abc-10\"", "8080-1-3-abc-10", 0));
+		assertFalse(ByteRange.ifRangeMatches("W/\"8080-1-3-abc-10\"", "8080-1-3-abc-10", 0));
+	}
+
+	@Test
+	public void ifRangeMatchesOnlyTheExactLastModifiedDate() {
+		// Sun, 06 Nov 1994 08:49:37 GMT
+		long lastModified = 784111777000L + 250;
+		assertTrue(ByteRange.ifRangeMatches("Sun, 06 Nov 1994 08:49:37 GMT", "tag", lastModified));
+		assertFalse(ByteRange.ifRangeMatches("Sun, 06 Nov 1994 08:49:38 GMT", "tag", lastModified));
+		assertFalse(ByteRange.ifRangeMatches("yesterday", "tag", lastModified));
+	}
+}
@@ -0,0 +1,183 @@
+package edu.nku.firmware.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+
+public class UpdateNotificationHubTest {
+
+	@Test
+	public void versionChangeResumesEveryWaiterOfThatModel() {
+		UpdateNotificationHub hub = new UpdateNotificationHub();
+		FakeAsyncResponse first = new FakeAsyncResponse();
+		FakeAsyncResponse second = new FakeAsyncResponse();
+		FakeAsyncResponse otherModel = new FakeAsyncResponse();
+		hub.subscribe(8080, 1, first);
+		hub.subscribe(8080, 1, second);
+		hub.subscribe(8080, 2, otherModel);
+
+		hub.firmwareVersionChanged(8080, 1, 3, 4);
+
+		assertEquals(4, ((Result) first.entity).getVersion());
+		assertEquals(4, ((Result) second.entity).getVersion());
+		assertTrue(otherModel.isSuspended());
+		assertEquals(1, hub.getWaiterCount());
+		assertEquals(1, hub.getWatchedModelCount());
+	}
+
+	@Test
+	public void emptiedModelsAreForgotten() {
+		UpdateNotificationHub hub = new UpdateNotificationHub();
+		for (int modelId = 0; modelId < 100; modelId++) {
+			FakeAsyncResponse waiter = new FakeAsyncResponse();
+			hub.subscribe(8080, modelId, waiter);
+			if (modelId % 2 == 0) {
+				hub.unsubscribe(8080, modelId, waiter);
+			} else {
+				waiter.timeOut();
+			}
+		}
+		assertEquals(0, hub.getWaiterCount());
+		assertEquals(0, hub.getWatchedModelCount());
+	}
+
+	@Test
+	public void timeoutIsArmedBeforeTheWaiterCanBeResumed() {
+		final UpdateNotificationHub hub = new UpdateNotificationHub();
+		// a publish racing the subscribe: it lands as soon as the waiter is visible
+		FakeAsyncResponse waiter = new FakeAsyncResponse() {
+			@Override
+			public int hashCode() {
+				if (timeoutHandler != null && timeout > 0 && isSuspended()) {
+					return super.hashCode();
+				}
+				throw new IllegalStateException("published before the timeout was armed");
+			}
+		};
+		hub.subscribe(8080, 1, waiter);
+		hub.firmwareVersionChanged(8080, 1, 1, 2);
+		assertFalse(waiter.isSuspended());
+
+		waiter.timeOut();
+		assertEquals(2, ((Result) waiter.entity).getVersion());
+	}
+
+	@Test
+	public void timedOutWaitersGetNoContent() {
+		UpdateNotificationHub hub = new UpdateNotificationHub();
+		FakeAsyncResponse waiter = new FakeAsyncResponse();
+		hub.subscribe(8080, 1, waiter);
+		waiter.timeOut();
+		assertEquals(204, ((Response) waiter.entity).getStatus());
+
+		// a later publish has nobody left to resume
+		hub.firmwareVersionChanged(8080, 1, 1, 2);
+		assertNull(((Response) waiter.entity).getEntity());
+	}
+
+	private static class FakeAsyncResponse implements AsyncResponse {
+		TimeoutHandler timeoutHandler;
+		long timeout;
+		Object entity;
+		private boolean suspended = true;
+
+		void timeOut() {
+			if (suspended) {
+				timeoutHandler.handleTimeout(this);
+			}
+		}
+
+		@Override
+		public boolean resume(Object response) {
+			if (!suspended) {
+				return false;
+			}
+			suspended = false;
+			entity = response;
+			return true;
+		}
+
+		@Override
+		public boolean resume(Throwable response) {
+			return resume((Object) response);
+		}
+
+		@Override
+		public boolean cancel() {
+			return resume((Object) null);
+		}
+
+		@Override
+		public boolean cancel(int retryAfter) {
+			return cancel();
+		}
+
+		@Override
+		public boolean cancel(Date retryAfter) {
+			return cancel();
+		}
+
+		@Override
+		public boolean isSuspended() {
+			return suspended;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return !suspended;
+		}
+
+		@Override
+		public boolean setTimeout(long time, TimeUnit unit) {
+			// as in Jersey, a response that was already resumed cannot be given a timeout
+			if (!suspended) {
+				throw new IllegalStateException("Not suspended");
+			}
+			timeout = unit.toMillis(time);
+			return true;
+		}
+
+		@Override
+		public void setTimeoutHandler(TimeoutHandler handler) {
+			timeoutHandler = handler;
+		}
+
+		@Override
+		public Collection<Class<?>> register(Class<?> callback) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public Collection<Class<?>> register(Object callback) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+			return Collections.emptyMap();
+		}
+	}
+}
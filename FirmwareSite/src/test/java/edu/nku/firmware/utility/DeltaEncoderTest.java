@@ -0,0 +1,142 @@
+package edu.nku.firmware.utility;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DeltaEncoderTest {
+
+	private static final byte COPY = 1;
+	private static final byte INSERT = 2;
+
+	@Test
+	public void roundTripsIdenticalImagesAsOneCopy() {
+		byte[] image = randomBytes(1, 100000);
+		byte[] delta = DeltaEncoder.encode(image, image);
+
+		assertArrayEquals(image, DeltaEncoder.apply(image, delta));
+		// header plus a single COPY
+		assertEquals(4 + 8 + 9, delta.length);
+	}
+
+	@Test
+	public void roundTripsEmptyImages() {
+		byte[] image = randomBytes(2, 1000);
+		byte[] empty = new byte[0];
+
+		assertArrayEquals(empty, DeltaEncoder.apply(image, DeltaEncoder.encode(image, empty)));
+		assertArrayEquals(image, DeltaEncoder.apply(empty, DeltaEncoder.encode(empty, image)));
+		assertArrayEquals(empty, DeltaEncoder.apply(empty, DeltaEncoder.encode(empty, empty)));
+	}
+
+	@Test
+	public void roundTripsImagesShorterThanABlock() {
+		byte[] base = "short".getBytes();
+		byte[] target = "shorter".getBytes();
+		assertArrayEquals(target, DeltaEncoder.apply(base, DeltaEncoder.encode(base, target)));
+	}
+
+	@Test
+	public void roundTripsEditedImagesCompactly() {
+		byte[] base = randomBytes(3, 200000);
+		byte[] target = Arrays.copyOf(base, base.length + 5000);
+		// a patched region, a moved block and an appended tail
+		Arrays.fill(target, 1000, 1100, (byte) 0x5a);
+		System.arraycopy(base, 150000, target, 50000, 4096);
+		System.arraycopy(randomBytes(4, 5000), 0, target, base.length, 5000);
+
+		byte[] delta = DeltaEncoder.encode(base, target);
+		assertArrayEquals(target, DeltaEncoder.apply(base, delta));
+		assertTrue("delta of " + delta.length + " bytes", delta.length < 6000);
+	}
+
+	@Test
+	public void roundTripsRandomEdits() {
+		Random random = new Random(5);
+		for (int trial = 0; trial < 100; trial++) {
+			byte[] base = randomBytes(trial, random.nextInt(5000));
+			byte[] target = mutate(base, random);
+			assertArrayEquals("trial " + trial, target, DeltaEncoder.apply(base, DeltaEncoder.encode(base, target)));
+		}
+	}
+
+	@Test
+	public void rejectsADeltaForAnotherBase() {
+		byte[] base = randomBytes(6, 1000);
+		byte[] delta = DeltaEncoder.encode(base, randomBytes(7, 1000));
+		assertRejected(Arrays.copyOf(base, 999), delta);
+	}
+
+	@Test
+	public void rejectsMalformedDeltas() {
+		byte[] base = randomBytes(8, 100);
+
+		assertRejected(base, new byte[5]);
+		assertRejected(base, bytes(header(base.length, 10)));
+		byte[] notADelta = DeltaEncoder.encode(base, base);
+		notADelta[0] = 'X';
+		assertRejected(base, notADelta);
+		// negative lengths and offsets
+		assertRejected(base, bytes(header(base.length, -1)));
+		assertRejected(base, bytes(header(base.length, 10).put(COPY).putInt(0).putInt(-10)));
+		assertRejected(base, bytes(header(base.length, 10).put(COPY).putInt(-1).putInt(10)));
+		assertRejected(base, bytes(header(base.length, 10).put(INSERT).putInt(-10)));
+		// reaching past the base, the delta or the target
+		assertRejected(base, bytes(header(base.length, 10).put(COPY).putInt(95).putInt(10)));
+		assertRejected(base, bytes(header(base.length, 10).put(INSERT).putInt(10).put(new byte[4])));
+		assertRejected(base, bytes(header(base.length, 10).put(COPY).putInt(0).putInt(20)));
+		// a truncated operation and an unknown one
+		assertRejected(base, bytes(header(base.length, 10).put(COPY).putInt(0)));
+		assertRejected(base, bytes(header(base.length, 10).put((byte) 9)));
+		// a huge target the operations do not fill
+		assertRejected(base, bytes(header(base.length, Integer.MAX_VALUE).put(COPY).putInt(0).putInt(10)));
+	}
+
+	private static ByteBuffer header(int baseLength, int targetLength) {
+		ByteBuffer delta = ByteBuffer.allocate(64);
+		delta.put(DeltaEncoder.MAGIC).putInt(baseLength).putInt(targetLength);
+		return delta;
+	}
+
+	private static byte[] bytes(ByteBuffer delta) {
+		return Arrays.copyOf(delta.array(), delta.position());
+	}
+
+	private static void assertRejected(byte[] base, byte[] delta) {
+		try {
+			DeltaEncoder.apply(base, delta);
+			fail("Accepted a malformed delta");
+		} catch (IllegalArgumentException expected) {
+			// rejected as it should be
+		}
+	}
+
+	private static byte[] mutate(byte[] base, Random random) {
+		byte[] target = Arrays.copyOf(base, base.length);
+		int edits = random.nextInt(5);
+		for (int i = 0; i < edits && target.length > 0; i++) {
+			int at = random.nextInt(target.length);
+			int length = Math.min(target.length - at, random.nextInt(64) + 1);
+			for (int j = at; j < at + length; j++) {
+				target[j] = (byte) random.nextInt();
+			}
+		}
+		if (random.nextBoolean()) {
+			target = Arrays.copyOf(target, target.length + random.nextInt(100));
+		}
+		return target;
+	}
+
+	private static byte[] randomBytes(long seed, int length) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,96 @@
+package edu.nku.firmware.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongIntHashMapTest {
+
+	private static final int MISSING = -1;
+
+	@Test
+	public void keepsEveryKeyAcrossRehashes() {
+		LongIntHashMap map = new LongIntHashMap();
+		for (int modelId = 0; modelId < 10000; modelId++) {
+			assertEquals(MISSING, map.put(DataUtility.packKey(8080, modelId), modelId, MISSING));
+		}
+		assertEquals(10000, map.size());
+		for (int modelId = 0; modelId < 10000; modelId++) {
+			assertEquals(modelId, map.get(DataUtility.packKey(8080, modelId), MISSING));
+		}
+		assertEquals(MISSING, map.get(DataUtility.packKey(8081, 0), MISSING));
+	}
+
+	@Test
+	public void putReplacesAndReturnsThePreviousValue() {
+		LongIntHashMap map = new LongIntHashMap();
+		assertEquals(MISSING, map.put(42L, 1, MISSING));
+		assertEquals(1, map.put(42L, 2, MISSING));
+		assertEquals(2, map.get(42L, MISSING));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void removeDeletesOnlyThatKey() {
+		LongIntHashMap map = new LongIntHashMap();
+		for (long key = 0; key < 1000; key++) {
+			map.put(key, (int) key * 2, MISSING);
+		}
+		for (long key = 0; key < 1000; key += 2) {
+			assertEquals((int) key * 2, map.remove(key, MISSING));
+		}
+		assertEquals(500, map.size());
+		for (long key = 0; key < 1000; key++) {
+			assertEquals(key % 2 == 0 ? MISSING : (int) key * 2, map.get(key, MISSING));
+		}
+		assertEquals(MISSING, map.remove(0L, MISSING));
+
+		// removed keys can come back
+		map.put(0L, 7, MISSING);
+		assertEquals(7, map.get(0L, MISSING));
+	}
+
+	@Test
+	public void handlesTheFreeMarkerAsAKey() {
+		LongIntHashMap map = new LongIntHashMap();
+		assertFalse(map.containsKey(Long.MIN_VALUE));
+		map.put(Long.MIN_VALUE, 5, MISSING);
+		assertTrue(map.containsKey(Long.MIN_VALUE));
+		assertEquals(5, map.get(Long.MIN_VALUE, MISSING));
+		assertEquals(1, map.size());
+
+		assertEquals(5, map.remove(Long.MIN_VALUE, MISSING));
+		assertFalse(map.containsKey(Long.MIN_VALUE));
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void matchesHashMapUnderRandomOperations() {
+		// a small key space keeps probe runs long, which is where removal can go wrong
+		Random random = new Random(20);
+		LongIntHashMap map = new LongIntHashMap();
+		Map<Long, Integer> expected = new HashMap<>();
+		for (int i = 0; i < 200000; i++) {
+			long key = random.nextInt(300);
+			if (random.nextInt(3) == 0) {
+				Integer removed = expected.remove(key);
+				assertEquals(removed == null ? MISSING : removed, map.remove(key, MISSING));
+			} else {
+				int value = random.nextInt(1000);
+				Integer previous = expected.put(key, value);
+				assertEquals(previous == null ? MISSING : previous, map.put(key, value, MISSING));
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		for (long key = 0; key < 300; key++) {
+			Integer value = expected.get(key);
+			assertEquals(value == null ? MISSING : value, map.get(key, MISSING));
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package edu.nku.firmware.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class LruCacheTest {
+	/*
+	 * A cache of 32 has 16 segments of two entries each. Small Integer keys
+	 * that differ by a multiple of 16 share a segment, so these tests can
+	 * predict which entry a segment evicts.
+	 */
+
+	@Test
+	public void evictsLeastRecentlyUsedEntry() {
+		LruCache<Integer, String> cache = new LruCache<>(32);
+		cache.put(0, "a");
+		cache.put(16, "b");
+		// reading 0 makes 16 the eldest
+		assertEquals("a", cache.get(0));
+		cache.put(32, "c");
+
+		assertEquals("a", cache.peek(0));
+		assertNull(cache.peek(16));
+		assertEquals("c", cache.peek(32));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void evictsByWeight() {
+		LruCache<Integer, byte[]> cache = new LruCache<>(32, 16 * 100, new LruCache.Weigher<byte[]>() {
+			@Override
+			public long weigh(byte[] value) {
+				return value.length;
+			}
+		});
+		cache.put(0, new byte[60]);
+		cache.put(16, new byte[60]);
+
+		assertNull(cache.peek(0));
+		assertEquals(60, cache.weight());
+	}
+
+	@Test
+	public void keepsAnEntryHeavierThanItsSegment() {
+		LruCache<Integer, byte[]> cache = new LruCache<>(32, 16 * 100, new LruCache.Weigher<byte[]>() {
+			@Override
+			public long weigh(byte[] value) {
+				return value.length;
+			}
+		});
+		cache.put(0, new byte[500]);
+
+		assertEquals(500, cache.peek(0).length);
+		assertEquals(500, cache.weight());
+	}
+
+	@Test
+	public void invalidateReleasesWeight() {
+		LruCache<Integer, byte[]> cache = new LruCache<>(32, 16 * 100, new LruCache.Weigher<byte[]>() {
+			@Override
+			public long weigh(byte[] value) {
+				return value.length;
+			}
+		});
+		cache.put(0, new byte[40]);
+		cache.put(1, new byte[30]);
+		cache.invalidate(0);
+
+		assertEquals(30, cache.weight());
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.weight());
+	}
+
+	@Test
+	public void putIfAbsentKeepsExistingValue() {
+		LruCache<String, String> cache = new LruCache<>(10);
+		assertEquals("first", cache.putIfAbsent("key", "first"));
+		assertEquals("first", cache.putIfAbsent("key", "second"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void countsHitsAndMisses() {
+		LruCache<String, String> cache = new LruCache<>(10);
+		cache.put("key", "value");
+		cache.get("key");
+		cache.get("missing");
+		cache.peek("missing");
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+}
@@ -0,0 +1,109 @@
+package edu.nku.firmware.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class MpscRingBufferTest {
+
+	@Test
+	public void roundsCapacityUpToAPowerOfTwo() {
+		assertEquals(8, new MpscRingBuffer<Integer>(5).capacity());
+		assertEquals(8, new MpscRingBuffer<Integer>(8).capacity());
+		assertEquals(16, new MpscRingBuffer<Integer>(9).capacity());
+	}
+
+	@Test
+	public void rejectsOffersWhenFull() {
+		MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(i));
+		}
+		assertFalse(ring.offer(4));
+		assertEquals(4, ring.size());
+
+		assertEquals(Integer.valueOf(0), ring.poll());
+		assertTrue(ring.offer(4));
+	}
+
+	@Test
+	public void keepsFifoOrderAcrossWraparound() {
+		MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(4);
+		int next = 0;
+		int expected = 0;
+		// ten laps of the ring, never quite emptying it
+		for (int lap = 0; lap < 40; lap++) {
+			while (ring.offer(next)) {
+				next++;
+			}
+			for (int i = 0; i < 3; i++) {
+				assertEquals(Integer.valueOf(expected++), ring.poll());
+			}
+		}
+		while (expected < next) {
+			assertEquals(Integer.valueOf(expected++), ring.poll());
+		}
+		assertNull(ring.poll());
+		assertEquals(0, ring.size());
+	}
+
+	@Test
+	public void drainToStopsAtMaxItems() {
+		MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(8);
+		for (int i = 0; i < 6; i++) {
+			ring.offer(i);
+		}
+		List<Integer> drained = new ArrayList<>();
+		assertEquals(4, ring.drainTo(drained, 4));
+		assertEquals(2, ring.drainTo(drained, 4));
+		assertEquals(0, ring.drainTo(drained, 4));
+		for (int i = 0; i < 6; i++) {
+			assertEquals(Integer.valueOf(i), drained.get(i));
+		}
+	}
+
+	@Test
+	public void deliversEveryItemFromConcurrentProducers() throws InterruptedException {
+		final MpscRingBuffer<Long> ring = new MpscRingBuffer<>(64);
+		final int producers = 4;
+		final int perProducer = 20000;
+		final CountDownLatch done = new CountDownLatch(producers);
+		for (int p = 0; p < producers; p++) {
+			final long base = (long) p << 32;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						while (!ring.offer(base + i)) {
+							Thread.yield();
+						}
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+
+		// each producer's items must arrive in the order it offered them
+		int[] nextExpected = new int[producers];
+		int received = 0;
+		while (received < producers * perProducer) {
+			Long item = ring.poll();
+			if (item == null) {
+				Thread.yield();
+				continue;
+			}
+			int producer = (int) (item >>> 32);
+			assertEquals(nextExpected[producer]++, (int) (long) item);
+			received++;
+		}
+		done.await();
+		assertNull(ring.poll());
+	}
+}
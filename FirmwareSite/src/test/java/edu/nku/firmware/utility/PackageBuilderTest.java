@@ -0,0 +1,62 @@
+package edu.nku.firmware.utility;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PackageBuilderTest {
+
+	private static final int VENDOR = 8080;
+
+	@BeforeClass
+	public static void createStore() throws IOException {
+		Path dir = Files.createTempDirectory("firmware-test");
+		System.setProperty("firmware.log.path", dir.resolve("FirmwareSite.log").toString());
+		System.setProperty("firmware.store.path", dir.resolve("store").toString());
+	}
+
+	@Test
+	public void placeholdersKeepTheirDateAcrossRebuilds() throws IOException {
+		FirmwarePackage first = new PackageBuilder(ServiceLogger.getInstance()).getPackage("8080", "20", 1);
+		FirmwarePackage rebuilt = new PackageBuilder(ServiceLogger.getInstance()).getPackage("8080", "20", 1);
+		assertNull(first.getFile());
+		assertEquals(0, first.getLastModified());
+		assertEquals(first.getLastModified(), rebuilt.getLastModified());
+		assertArrayEquals(first.getContent(), rebuilt.getContent());
+	}
+
+	@Test
+	public void storedImageReplacesACachedPlaceholder() throws IOException {
+		PackageBuilder packageBuilder = new PackageBuilder(ServiceLogger.getInstance());
+		final List<Integer> replaced = new ArrayList<>();
+		packageBuilder.addImageListener(new FirmwareVersionListener() {
+			@Override
+			public void firmwareVersionChanged(int vendorId, int modelId, int previousVersion, int newVersion) {
+				assertEquals(previousVersion, newVersion);
+				replaced.add(modelId);
+			}
+		});
+		FirmwarePackage placeholder = packageBuilder.getPackage("8080", "21", 1);
+		assertSame(placeholder, packageBuilder.getPackage("8080", "21", 1));
+
+		Path file = packageBuilder.storedImage(VENDOR, 21, 1);
+		Files.createDirectories(file.getParent());
+		Files.write(file, new byte[] { 1, 2, 3 });
+
+		FirmwarePackage stored = packageBuilder.getPackage("8080", "21", 1);
+		assertEquals(file, stored.getFile());
+		assertEquals(3, stored.getSize());
+		assertSame(stored, packageBuilder.getPackage("8080", "21", 1));
+		assertEquals(1, replaced.size());
+	}
+}
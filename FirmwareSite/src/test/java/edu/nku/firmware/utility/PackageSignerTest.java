@@ -0,0 +1,133 @@
+package edu.nku.firmware.utility;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PackageSignerTest {
+	/*
+	 * Runs against a fresh copy of the bundled database and an empty
+	 * firmware store. Each new PackageBuilder and PackageSigner stands in
+	 * for a restart: only the catalog carries signatures across.
+	 */
+
+	private static final int VENDOR = 8080;
+
+	private static DataUtility data;
+	private static CryptoUtility crypto;
+
+	@BeforeClass
+	public static void openDatabase() throws IOException {
+		Path dir = Files.createTempDirectory("firmware-test");
+		System.setProperty("firmware.db.path", dir.resolve("FirmwareSite.db").toString());
+		System.setProperty("firmware.log.path", dir.resolve("FirmwareSite.log").toString());
+		System.setProperty("firmware.store.path", dir.resolve("store").toString());
+		data = DataUtility.getInstance();
+		crypto = new CryptoUtility(data, ServiceLogger.getInstance(), VENDOR);
+	}
+
+	@Test
+	public void signsWithAnEcdsaP256Key() {
+		assertEquals("SHA256withECDSA", crypto.getSignatureAlgorithm());
+		assertEquals("EC", crypto.getSigningPublicKey().getAlgorithm());
+		// the same key comes back from the catalog
+		CryptoUtility reloaded = new CryptoUtility(data, ServiceLogger.getInstance(), VENDOR);
+		assertArrayEquals(crypto.getSigningPublicKey().getEncoded(), reloaded.getSigningPublicKey().getEncoded());
+	}
+
+	@Test
+	public void doesNotReuseAPlaceholderSignatureForTheStoredImage() throws Exception {
+		PackageBuilder placeholderBuilder = new PackageBuilder(ServiceLogger.getInstance());
+		FirmwarePackage placeholder = placeholderBuilder.getPackage(String.valueOf(VENDOR), "10", 0);
+		assertNull(placeholder.getFile());
+		byte[] placeholderSignature = awaitSignature(newSigner(placeholderBuilder), placeholder);
+		assertTrue(verifies(placeholder.readContent(), placeholderSignature));
+
+		byte[] image = new byte[100000];
+		new Random(25).nextBytes(image);
+		Path file = placeholderBuilder.storedImage(VENDOR, 10, 0);
+		Files.createDirectories(file.getParent());
+		Files.write(file, image);
+
+		PackageBuilder storeBuilder = new PackageBuilder(ServiceLogger.getInstance());
+		FirmwarePackage stored = storeBuilder.getPackage(String.valueOf(VENDOR), "10", 0);
+		assertEquals(file, stored.getFile());
+		byte[] storedSignature = awaitSignature(newSigner(storeBuilder), stored);
+		assertTrue(verifies(image, storedSignature));
+
+		// and once signed, the stored image's signature is reused
+		PackageBuilder restarted = new PackageBuilder(ServiceLogger.getInstance());
+		assertArrayEquals(storedSignature,
+				awaitSignature(newSigner(restarted), restarted.getPackage(String.valueOf(VENDOR), "10", 0)));
+	}
+
+	@Test
+	public void freshSignerReturnsTheStoredSignatureOnTheFirstCall() throws Exception {
+		byte[] image = new byte[20000];
+		new Random(27).nextBytes(image);
+		PackageBuilder packageBuilder = new PackageBuilder(ServiceLogger.getInstance());
+		Path file = packageBuilder.storedImage(VENDOR, 12, 3);
+		Files.createDirectories(file.getParent());
+		Files.write(file, image);
+		byte[] signature = awaitSignature(newSigner(packageBuilder),
+				packageBuilder.getPackage(String.valueOf(VENDOR), "12", 3));
+
+		// a restart, or an eviction from the package cache, must not answer "not signed yet"
+		PackageBuilder restarted = new PackageBuilder(ServiceLogger.getInstance());
+		PackageSigner signer = newSigner(restarted);
+		try {
+			assertArrayEquals(signature, signer.getSignature(restarted.getPackage(String.valueOf(VENDOR), "12", 3)));
+		} finally {
+			signer.shutdown();
+		}
+	}
+
+	@Test
+	public void contentHashIsTheSameInMemoryAndOnDisk() throws IOException {
+		byte[] image = new byte[5000];
+		new Random(26).nextBytes(image);
+		Path file = Files.createTempFile("firmware-test", ".bin");
+		Files.write(file, image);
+		FirmwarePackage inMemory = new FirmwarePackage(VENDOR, 11, 1, image);
+		FirmwarePackage onDisk = new FirmwarePackage(VENDOR, 11, 1, null, file, image.length, 0);
+		assertArrayEquals(inMemory.getContentHash(), onDisk.getContentHash());
+		assertEquals(32, onDisk.getContentHash().length);
+	}
+
+	private static PackageSigner newSigner(PackageBuilder packageBuilder) {
+		PackageSigner signer = new PackageSigner(data, packageBuilder, ServiceLogger.getInstance());
+		signer.registerVendor(VENDOR, crypto);
+		return signer;
+	}
+
+	private static byte[] awaitSignature(PackageSigner signer, FirmwarePackage oPackage)
+			throws InterruptedException, IOException {
+		byte[] signature = signer.getSignature(oPackage);
+		for (int i = 0; signature == null && i < 200; i++) {
+			Thread.sleep(25);
+			signature = signer.getSignature(oPackage);
+		}
+		signer.shutdown();
+		assertNotNull("never signed", signature);
+		return signature;
+	}
+
+	private static boolean verifies(byte[] content, byte[] signature) throws GeneralSecurityException {
+		Signature verifier = Signature.getInstance(crypto.getSignatureAlgorithm());
+		verifier.initVerify(crypto.getSigningPublicKey());
+		verifier.update(content);
+		return verifier.verify(signature);
+	}
+}
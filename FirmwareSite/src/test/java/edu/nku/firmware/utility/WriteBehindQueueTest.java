@@ -0,0 +1,113 @@
+package edu.nku.firmware.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+	/*
+	 * Runs against a fresh copy of the bundled database. The batch size and
+	 * flush interval are set far out of reach, so nothing is written unless
+	 * a test flushes or closes the queue.
+	 */
+
+	private static DataUtility data;
+
+	@BeforeClass
+	public static void openDatabase() throws IOException {
+		Path dbDir = Files.createTempDirectory("firmware-test");
+		System.setProperty("firmware.db.path", dbDir.resolve("FirmwareSite.db").toString());
+		System.setProperty("firmware.log.path", dbDir.resolve("FirmwareSite.log").toString());
+		System.setProperty("firmware.writeBehind.batchSize", "1000000");
+		System.setProperty("firmware.writeBehind.flushInterval", "3600000");
+		data = DataUtility.getInstance();
+	}
+
+	private static int storedVersion(String vendorId, String modelId) {
+		// these queues write behind DataUtility's back, so its cache is no guide
+		data.getVersionCache().invalidateAll();
+		return data.getFirmwareVersion(vendorId, modelId);
+	}
+
+	@Test
+	public void closeFlushesEverythingPending() {
+		WriteBehindQueue queue = new WriteBehindQueue(data, ServiceLogger.getInstance());
+		for (int modelId = 0; modelId < 100; modelId++) {
+			queue.put(DataUtility.packKey(7001, modelId), modelId + 1);
+		}
+		assertEquals(100, queue.getPendingCount());
+		assertEquals(0, queue.getWrittenCount());
+
+		queue.close();
+
+		assertEquals(0, queue.getPendingCount());
+		assertEquals(100, queue.getWrittenCount());
+		assertEquals(1, storedVersion("7001", "0"));
+		assertEquals(100, storedVersion("7001", "99"));
+	}
+
+	@Test
+	public void coalescesWritesToTheSameModel() {
+		WriteBehindQueue queue = new WriteBehindQueue(data, ServiceLogger.getInstance());
+		long key = DataUtility.packKey(7002, 1);
+		for (int version = 1; version <= 50; version++) {
+			queue.put(key, version);
+		}
+		assertEquals(1, queue.getPendingCount());
+		assertEquals(Integer.valueOf(50), queue.peek(key));
+
+		queue.close();
+
+		assertEquals(1, queue.getWrittenCount());
+		assertEquals(50, storedVersion("7002", "1"));
+	}
+
+	@Test
+	public void callerFlushesOnceTheQueueIsFull() {
+		System.setProperty("firmware.writeBehind.maxPending", "10");
+		WriteBehindQueue queue;
+		try {
+			queue = new WriteBehindQueue(data, ServiceLogger.getInstance());
+		} finally {
+			System.clearProperty("firmware.writeBehind.maxPending");
+		}
+		for (int modelId = 0; modelId < 10; modelId++) {
+			assertTrue(queue.put(DataUtility.packKey(7004, modelId), 1));
+		}
+		// replacing a waiting write does not need room
+		assertTrue(queue.put(DataUtility.packKey(7004, 0), 2));
+		assertEquals(0, queue.getWrittenCount());
+
+		assertTrue(queue.put(DataUtility.packKey(7004, 10), 1));
+		assertEquals(10, queue.getWrittenCount());
+		assertEquals(1, queue.getPendingCount());
+		assertEquals(0, queue.getDroppedCount());
+		assertEquals(2, storedVersion("7004", "0"));
+
+		queue.close();
+		assertEquals(1, storedVersion("7004", "10"));
+	}
+
+	@Test
+	public void peekSeesPendingVersionsUntilFlushed() {
+		WriteBehindQueue queue = new WriteBehindQueue(data, ServiceLogger.getInstance());
+		long key = DataUtility.packKey(7003, 1);
+		queue.put(key, 3);
+		assertEquals(Integer.valueOf(3), queue.peek(key));
+
+		assertTrue(queue.flush());
+		assertNull(queue.peek(key));
+		assertEquals(3, storedVersion("7003", "1"));
+
+		queue.put(key, 4);
+		queue.close();
+		assertEquals(4, storedVersion("7003", "1"));
+	}
+}